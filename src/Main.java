@@ -1,10 +1,23 @@
+import db.ActiveStatements;
+import db.CircuitBreakerRegistry;
+import db.ConnectionPool;
+import db.DbConnector;
 import db.ServerRequest;
 import logging.LogService;
 import model.*;
-import processor.ResponseProcessor;
+import processor.ChangeDetector;
+import processor.ResultDelta;
+import processor.ResultFanOut;
+import scheduler.DurationHistory;
+import scheduler.QueryRouting;
+import scheduler.QuerySchedule;
+import scheduler.WorkerExecutors;
 
+import java.nio.file.Paths;
 import java.security.Security;          // <--  NEW
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
  /*
         Get-ChildItem -File err_* | Where-Object { $_.LastWriteTime -lt (Get-Date).AddHours(-48) } | Remove-Item -Force
@@ -13,6 +26,11 @@ import java.util.concurrent.*;
 /** Точка входа приложения. */
 public class Main {
 
+    /** Сколько ждать отчёта воркеров после отмены запросов по дедлайну, секунд. */
+    private static final long DEADLINE_GRACE_SEC = 10;
+    /** Все инстансы последнего цикла; не завершились — в нём остались отставшие после дедлайна. */
+    private static volatile CompletableFuture<Void> lastCycle;
+
     /* ------------------------------------------------------------------
        Глобально снимаем ВСЕ ограничения Java-TLS для данного процесса.
        Делается один раз при загрузке класса Main, ещё до метода main().
@@ -53,6 +71,7 @@ public class Main {
 
         switch (cfg.taskName.toUpperCase()) {
             case "SAVE_CONFIGS"       -> runSaveConfigs(cfg);
+            case "DAEMON"             -> runDaemon(cfg);
             case "PROCESS_XML_RESULT" -> LogService.println("Task PROCESS_XML_RESULT not implemented yet.");
             default                   -> runFullPipeline(cfg);   // RUN (по умолчанию)
         }
@@ -69,26 +88,31 @@ public class Main {
 
         /* ── 2. Подготовка (пароли + обогащение строк) ────────── */
         InstanceConfigEnreacher.enrichWithPasswords(servers);
-        ResponseProcessor resp = new ResponseProcessor(cfg.resultsDestination);
+        ResultFanOut resp = ResultFanOut.create(cfg.getResultsDestinations());
+        configureConnections(cfg);
 
-        ExecutorService pool = Executors.newFixedThreadPool(
-                Math.min(servers.size(), cfg.threadPoolSize));
+        ExecutorService pool = newWorkerPool(cfg, servers.size());
 
         /* ── 3. Параллельный опрос всех серверов ──────────────── */
-        long t0Exec = System.nanoTime();
-
-        CompletableFuture.allOf(
-                servers.stream()
-                        .map(s -> new ServerRequest(s, queries, resp).execute(pool))
-                        .toArray(CompletableFuture[]::new)
-        ).join();
-
-        long execMs = (System.nanoTime() - t0Exec) / 1_000_000;
-        double avgPerSrv = servers.isEmpty() ? 0.0 : (double) execMs / servers.size();
-        LogService.printf("[TIME] Parallel block: %d ms (≈ %.2f ms / server)%n",
-                execMs, avgPerSrv);
+        // В режиме RUN время прошлых запусков запросов с intervalSec хранится в файле
+        QuerySchedule schedule = queries.stream().anyMatch(QueryRequest::hasInterval)
+                ? QuerySchedule.load(Paths.get(cfg.stateDirectory, "schedule.properties"))
+                : QuerySchedule.inMemory();
+        DurationHistory durations = DurationHistory.load(Paths.get(cfg.stateDirectory, "durations.properties"));
+        ChangeDetector changes = queries.stream().anyMatch(QueryRequest::isWriteOnChange)
+                ? ChangeDetector.load(queries, Paths.get(cfg.stateDirectory, "result-hashes.properties"))
+                : ChangeDetector.inMemory(queries);
+        resp.setChangeDetector(changes);
+        resp.setResultDelta(ResultDelta.create(queries, Paths.get(cfg.stateDirectory, "snapshots")));
+        runCycle(cfg, servers, QueryRouting.build(servers, queries), resp, pool, schedule, durations,
+                cfg.runDeadlineSec);
+        schedule.save();
+        durations.save();
 
         pool.shutdown();
+        resp.close();
+        changes.save();   // после close: хэши запоминаются, когда получатель подтвердил запись
+        ConnectionPool.closeAll();
 
         /* ── 4. Финальная статистика ──────────────────────────── */
         long totalMs = (System.nanoTime() - t0Total) / 1_000_000;
@@ -96,10 +120,185 @@ public class Main {
                 totalMs, totalMs / 1000.0);
     }
 
+    /* ========== режим DAEMON =================================== */
+
+    /**
+     * Долгоживущий режим: конфиги, пароли и драйверы готовятся один раз,
+     * затем опрос повторяется каждые {@code ScheduleIntervalSec} секунд
+     * во встроенном планировщике. Процесс живёт до SIGTERM / Ctrl+C.
+     *
+     * scheduleAtFixedRate не запускает циклы внахлёст: если опрос длился
+     * дольше интервала, следующий стартует сразу после окончания текущего.
+     */
+    private static void runDaemon(AppConfig cfg) throws Exception {
+        long intervalSec = Math.max(1, cfg.scheduleIntervalSec);
+        // чтобы один зависший сервер не сбивал ритм, цикл по умолчанию ограничен интервалом
+        long deadlineSec = cfg.runDeadlineSec > 0 ? cfg.runDeadlineSec : intervalSec;
+
+        List<InstanceConfig> servers = InstancesConfigReader.readConfig(cfg);
+        List<QueryRequest>   queries = QueryRequestsReader.read(cfg);
+        InstanceConfigEnreacher.enrichWithPasswords(servers);
+
+        ResultFanOut resp = ResultFanOut.create(cfg.getResultsDestinations());
+        configureConnections(cfg);
+        ExecutorService pool = newWorkerPool(cfg, servers.size());
+        QuerySchedule schedule = QuerySchedule.inMemory();
+        DurationHistory durations = DurationHistory.inMemory();
+        resp.setChangeDetector(ChangeDetector.inMemory(queries));
+        resp.setResultDelta(ResultDelta.create(queries, Paths.get(cfg.stateDirectory, "snapshots")));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                r -> new Thread(r, "daemon-scheduler"));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LogService.println("[DAEMON] shutdown requested, waiting for the current cycle...");
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(intervalSec, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            pool.shutdownNow();
+            resp.close();
+            ConnectionPool.closeAll();
+        }, "daemon-shutdown"));
+
+        Map<InstanceConfig, List<QueryRequest>> queriesByServer = QueryRouting.build(servers, queries);
+
+        LogService.printf("[DAEMON] started: %d servers, %d queries, interval %d s%n",
+                servers.size(), queries.size(), intervalSec);
+
+        scheduler.scheduleAtFixedRate(() -> {
+            long t0 = System.nanoTime();
+            CompletableFuture<Void> prev = lastCycle;
+            if (prev != null && !prev.isDone()) {
+                // сброс expired в beginRun оживил бы отставших — циклы пошли бы внахлёст
+                LogService.errorf("[DAEMON] previous cycle still has servers running after deadline, cycle skipped%n");
+                return;
+            }
+            try {
+                resp.beginCycle();
+                ConnectionPool.evictIdle();
+                runCycle(cfg, servers, queriesByServer, resp, pool, schedule, durations, deadlineSec);
+            } catch (Throwable t) {
+                // исключение из задачи отменило бы все следующие запуски — глушим
+                LogService.errorf("[DAEMON] cycle failed: %s%n", t);
+            }
+            long cycleMs = (System.nanoTime() - t0) / 1_000_000;
+            if (cycleMs > intervalSec * 1000) {
+                LogService.errorf("[DAEMON] cycle took %d ms, longer than interval %d s%n",
+                        cycleMs, intervalSec);
+            }
+        }, 0, intervalSec, TimeUnit.SECONDS);
+
+        scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        LogService.println("[DAEMON] stopped.");
+    }
+
+    private static void configureConnections(AppConfig cfg) {
+        DbConnector.configure(
+                cfg.connectThreadPoolSize > 0 ? cfg.connectThreadPoolSize : cfg.threadPoolSize,
+                cfg.maxConnectsPerSec, cfg.executorMode);
+        DbConnector.configureRetries(cfg.connectRetries, cfg.connectRetryBaseMs, cfg.connectRetryBudget);
+        ConnectionPool.configure(cfg.connectionPoolSize,
+                cfg.connectionIdleTimeoutSec, cfg.connectionMaxLifetimeSec);
+        CircuitBreakerRegistry.configure(cfg.breakerFailureThreshold,
+                cfg.breakerBaseBackoffSec, cfg.breakerMaxBackoffSec);
+        ServerRequest.configureDefaultTimeout(cfg.queryTimeoutSec);
+    }
+
+    /** PLATFORM — фиксированный пул (как раньше), VIRTUAL — поток на задачу, ADAPTIVE — пул по нагрузке. */
+    private static ExecutorService newWorkerPool(AppConfig cfg, int serverCount) {
+        return WorkerExecutors.newWorkerPool(cfg.executorMode, cfg.minThreadPoolSize,
+                Math.min(serverCount, cfg.threadPoolSize), "worker-");
+    }
+
+    /* ========== один цикл опроса (общий для RUN и DAEMON) ====== */
+    private static void runCycle(AppConfig cfg, List<InstanceConfig> servers,
+                                 Map<InstanceConfig, List<QueryRequest>> queriesByServer,
+                                 ResultFanOut resp, ExecutorService pool,
+                                 QuerySchedule schedule, DurationHistory durations, long deadlineSec) {
+        long t0Exec = System.nanoTime();
+        ActiveStatements.beginRun();
+        DbConnector.resetRetryBudget();
+
+        // С виртуальными потоками пул не ограничивает параллельность —
+        // число одновременно опрашиваемых инстансов держит семафор (ThreadPoolSize).
+        Semaphore instancePermits = WorkerExecutors.isVirtual(cfg.executorMode)
+                ? new Semaphore(Math.max(1, cfg.threadPoolSize))
+                : null;
+
+        long nowMs = System.currentTimeMillis();
+        int polled = 0;
+        List<CompletableFuture<Void>> futures = new ArrayList<>(servers.size());
+        // Самые долгие по истории инстансы стартуют первыми (LPT): медленный сервер
+        // в конце списка не растягивает цикл. Общая очередь пула сама раздаёт
+        // следующую задачу освободившемуся потоку.
+        for (InstanceConfig s : durations.longestFirst(servers)) {
+            List<QueryRequest> due = schedule.dueQueries(s.ci, queriesByServer.get(s), nowMs);
+            if (due.isEmpty()) continue;   // на этом инстансе в этом цикле запускать нечего
+            polled++;
+            ServerRequest req = new ServerRequest(s, due, resp,
+                    cfg.maxQueriesPerInstance, cfg.batchQueries, durations, schedule);
+            if (instancePermits == null) {
+                futures.add(req.execute(pool));
+                continue;
+            }
+            // разрешение берёт сама задача: главный поток не блокируется и успевает
+            // к дедлайну; после expire() дождавшиеся инстансы только отчитываются
+            futures.add(CompletableFuture.runAsync(instancePermits::acquireUninterruptibly, pool)
+                    .thenCompose(v -> req.execute(pool))
+                    .whenComplete((v, ex) -> instancePermits.release()));
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+        lastCycle = all;
+        awaitWithDeadline(all, t0Exec, deadlineSec);
+
+        long execMs = (System.nanoTime() - t0Exec) / 1_000_000;
+        double avgPerSrv = polled == 0 ? 0.0 : (double) execMs / polled;
+        LogService.printf("[TIME] Parallel block: %d ms (≈ %.2f ms / server, %d of %d servers polled)%n",
+                execMs, avgPerSrv, polled, servers.size());
+        DbConnector.logStats();
+        resp.logStats();
+    }
+
+    /**
+     * Ждёт завершения цикла. Если задан дедлайн и он наступил — отменяет
+     * выполняющиеся запросы и даёт воркерам короткое время отчитаться.
+     */
+    private static void awaitWithDeadline(CompletableFuture<Void> all, long t0Nanos, long deadlineSec) {
+        if (deadlineSec <= 0) {
+            all.join();
+            return;
+        }
+        long leftNanos = TimeUnit.SECONDS.toNanos(deadlineSec) - (System.nanoTime() - t0Nanos);
+        try {
+            all.get(Math.max(0, leftNanos), TimeUnit.NANOSECONDS);
+            return;
+        } catch (TimeoutException e) {
+            int cancelled = ActiveStatements.expire();
+            LogService.errorf("[DEADLINE] run deadline %d s exceeded, %d running queries cancelled%n",
+                    deadlineSec, cancelled);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            return;
+        }
+        try {
+            all.get(DEADLINE_GRACE_SEC, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            LogService.errorf("[DEADLINE] some servers still not finished %d s after cancel " +
+                    "(stuck in connect?), moving on%n", DEADLINE_GRACE_SEC);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+        }
+    }
+
     /* ========== режим SAVE_CONFIGS ============================= */
     private static void runSaveConfigs(AppConfig cfg) throws Exception {
 
-        List<InstanceConfig> servers = InstancesConfigReader.readConfig(cfg);
+        List<InstanceConfig> servers = InstancesConfigReader.readAll(cfg);
         List<QueryRequest>   queries = QueryRequestsReader.read(cfg);
 
         // спросим пароли (чтобы в файле они уже были заполнены)
@@ -0,0 +1,64 @@
+package db;
+
+import logging.LogService;
+
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Реестр выполняющихся в данный момент Statement-ов и дедлайн цикла опроса.
+ *
+ * Когда цикл не уложился в {@code RunDeadlineSec}, Main вызывает
+ * {@link #expire()}: все зарегистрированные Statement получают cancel(),
+ * их executeQuery завершается исключением, поток воркера освобождается,
+ * а ServerRequest сообщает результат как «Timeout». Запросы, которые ещё
+ * не успели стартовать, после дедлайна пропускаются.
+ */
+public final class ActiveStatements {
+
+    /** Statement → "ci/reqId" (для лога). */
+    private static final Map<Statement, String> running = new ConcurrentHashMap<>();
+
+    private static volatile boolean expired = false;
+
+    private ActiveStatements() {}
+
+    /** Начало нового цикла: сбрасывает признак просроченного дедлайна. */
+    public static void beginRun() {
+        expired = false;
+    }
+
+    /** true — дедлайн текущего цикла уже наступил. */
+    public static boolean isExpired() {
+        return expired;
+    }
+
+    static void register(Statement st, String ci, String reqId) {
+        running.put(st, ci + "/" + reqId);
+    }
+
+    static void unregister(Statement st) {
+        running.remove(st);
+    }
+
+    /**
+     * Дедлайн наступил: помечает цикл просроченным и отменяет все
+     * выполняющиеся запросы.
+     * @return сколько Statement было отменено
+     */
+    public static int expire() {
+        expired = true;
+        int cancelled = 0;
+        for (Map.Entry<Statement, String> e : running.entrySet()) {
+            try {
+                e.getKey().cancel();
+                cancelled++;
+                LogService.errorf("[DEADLINE] cancelled %s%n", e.getValue());
+            } catch (Exception ex) {
+                LogService.errorf("[DEADLINE] cancel failed for %s: %s%n", e.getValue(), ex.getMessage());
+            }
+        }
+        return cancelled;
+    }
+}
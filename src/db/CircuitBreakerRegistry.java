@@ -0,0 +1,124 @@
+package db;
+
+import logging.LogService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Circuit breaker на каждый инстанс (ключ — CI).
+ *
+ *  CLOSED    — опрашиваем как обычно, считаем подряд идущие ошибки подключения;
+ *  OPEN      — после {@code BreakerFailureThreshold} ошибок инстанс пропускается
+ *              (без попытки логина), пауза растёт экспоненциально до
+ *              {@code BreakerMaxBackoffSec} (с джиттером ±20%);
+ *  HALF_OPEN — пауза вышла: пропускаем один пробный опрос. Успех → CLOSED,
+ *              ошибка → снова OPEN с удвоенной паузой.
+ *
+ * Открывают breaker только ошибки вида CONNECT/TIMEOUT (см. {@link SqlErrorClassifier}):
+ * отказ в логине означает, что сервер жив, и поток на нём не простаивает.
+ * {@code BreakerFailureThreshold=0} — breaker выключен.
+ */
+public final class CircuitBreakerRegistry {
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final class Breaker {
+        State state = State.CLOSED;
+        int   failures;
+        int   openCount;
+        long  openUntil;
+    }
+
+    private static final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    private static volatile int  threshold     = 3;
+    private static volatile long baseBackoffMs = 30_000;
+    private static volatile long maxBackoffMs  = 900_000;
+
+    private CircuitBreakerRegistry() {}
+
+    /** Настройка из AppConfig. Вызывается один раз при старте. */
+    public static void configure(int failureThreshold, int baseBackoffSec, int maxBackoffSec) {
+        threshold     = Math.max(0, failureThreshold);
+        baseBackoffMs = Math.max(1, baseBackoffSec) * 1000L;
+        maxBackoffMs  = Math.max(baseBackoffMs, Math.max(1, maxBackoffSec) * 1000L);
+    }
+
+    /**
+     * Можно ли сейчас опрашивать инстанс. В состоянии OPEN по истечении паузы
+     * переводит breaker в HALF_OPEN и пропускает ровно один пробный опрос.
+     */
+    public static boolean tryAcquire(String ci) {
+        if (threshold == 0) return true;
+        Breaker b = breakers.get(ci);
+        if (b == null) return true;
+        synchronized (b) {
+            switch (b.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() < b.openUntil) return false;
+                    b.state = State.HALF_OPEN;
+                    LogService.printf("[BREAKER] CI=%s half-open, probing%n", ci);
+                    return true;
+                default:
+                    return false;   // HALF_OPEN: проба уже идёт
+            }
+        }
+    }
+
+    /** Подключение удалось — breaker закрывается. */
+    public static void onSuccess(String ci) {
+        if (threshold == 0) return;
+        Breaker b = breakers.get(ci);
+        if (b == null) return;
+        synchronized (b) {
+            if (b.state != State.CLOSED) {
+                LogService.printf("[BREAKER] CI=%s closed%n", ci);
+            }
+            b.state = State.CLOSED;
+            b.failures = 0;
+            b.openCount = 0;
+        }
+    }
+
+    /** Ошибка подключения: учитываются только CONNECT и TIMEOUT. */
+    public static void onFailure(String ci, SqlErrorClassifier.Kind kind) {
+        if (threshold == 0) return;
+        if (kind != SqlErrorClassifier.Kind.CONNECT && kind != SqlErrorClassifier.Kind.TIMEOUT) {
+            onSuccess(ci);  // сервер ответил (например, отказ в логине) — он доступен
+            return;
+        }
+        Breaker b = breakers.computeIfAbsent(ci, k -> new Breaker());
+        synchronized (b) {
+            b.failures++;
+            if (b.state == State.OPEN) return;  // другая дорожка того же инстанса уже открыла
+            if (b.state == State.HALF_OPEN || b.failures >= threshold) {
+                b.openCount++;
+                long backoff = backoffMs(b.openCount);
+                b.state = State.OPEN;
+                b.openUntil = System.currentTimeMillis() + backoff;
+                LogService.errorf("[BREAKER] CI=%s open after %d failures (%s), skip for %d s%n",
+                        ci, b.failures, kind, backoff / 1000);
+            }
+        }
+    }
+
+    /** Сколько секунд осталось до следующей пробы (для текста ошибки). */
+    public static long secondsUntilProbe(String ci) {
+        Breaker b = breakers.get(ci);
+        if (b == null) return 0;
+        synchronized (b) {
+            return Math.max(0, (b.openUntil - System.currentTimeMillis()) / 1000);
+        }
+    }
+
+    private static long backoffMs(int openCount) {
+        long backoff = baseBackoffMs << Math.min(openCount - 1, 20);
+        backoff = Math.min(maxBackoffMs, backoff);
+        double jitter = 0.8 + ThreadLocalRandom.current().nextDouble() * 0.4;
+        return (long) (backoff * jitter);
+    }
+}
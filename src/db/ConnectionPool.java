@@ -0,0 +1,204 @@
+package db;
+
+import logging.LogService;
+
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Пул JDBC-соединений с ключом по инстансу (ci + url + user).
+ *
+ * Нужен прежде всего режиму DAEMON: между циклами соединение с инстансом
+ * остаётся открытым, и повторный опрос не платит за TCP + TLS + login.
+ *
+ *  - borrow(key)   — взять простаивающее соединение (проверяется isValid перед выдачей);
+ *  - track(conn)   — зарегистрировать только что открытое соединение;
+ *  - release(key)  — вернуть в пул (или закрыть, если пул полон / истёк max lifetime);
+ *  - evictIdle()   — закрыть соединения, простаивающие дольше idle timeout.
+ *
+ * Пул на инстанс ограничен {@code ConnectionPoolSize} соединениями.
+ * {@code ConnectionPoolSize=0} — пул выключен, поведение как раньше (close после опроса).
+ */
+public final class ConnectionPool {
+
+    /** Таймаут проверки соединения перед повторным использованием, секунд. */
+    private static final int VALIDATION_TIMEOUT_SEC = 2;
+
+    private static volatile int  maxPerKey     = 1;
+    private static volatile long idleTimeoutMs = 300_000;
+    private static volatile long maxLifetimeMs = 1_800_000;
+
+    /** Простаивающие соединения: key → стек (сверху — самое свежее). */
+    private static final Map<String, Deque<Pooled>> idle = new ConcurrentHashMap<>();
+
+    /** Выданные соединения: conn → когда открыто и исходная БД (для сброса после USE ...). */
+    private static final Map<Connection, Lease> leased =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private record Lease(long createdAt, String catalog) {}
+    private record Pooled(Connection conn, Lease lease, long lastUsedAt) {}
+
+    private ConnectionPool() {}
+
+    /** Настройка из AppConfig. Вызывается один раз при старте. */
+    public static void configure(int maxPerInstance, int idleTimeoutSec, int maxLifetimeSec) {
+        maxPerKey     = Math.max(0, maxPerInstance);
+        idleTimeoutMs = Math.max(1, idleTimeoutSec) * 1000L;
+        maxLifetimeMs = Math.max(1, maxLifetimeSec) * 1000L;
+        LogService.printf("[POOL] per-instance size=%d, idle timeout=%d s, max lifetime=%d s%n",
+                maxPerKey, idleTimeoutMs / 1000, maxLifetimeMs / 1000);
+    }
+
+    public static boolean isEnabled() {
+        return maxPerKey > 0;
+    }
+
+    /**
+     * Возвращает живое соединение из пула либо {@code null}, если свободных нет.
+     * Протухшие и битые соединения по дороге закрываются.
+     */
+    public static Connection borrow(String key) {
+        if (!isEnabled()) return null;
+        Deque<Pooled> dq = idle.get(key);
+        if (dq == null) return null;
+
+        while (true) {
+            Pooled p;
+            synchronized (dq) { p = dq.pollFirst(); }
+            if (p == null) return null;
+
+            long now = System.currentTimeMillis();
+            if (isExpired(p, now) || !isAlive(p.conn())) {
+                closeSilently(p.conn());
+                continue;
+            }
+            leased.put(p.conn(), p.lease());
+            return p.conn();
+        }
+    }
+
+    /** Регистрирует только что открытое соединение как выданное. */
+    public static void track(Connection c) {
+        if (c == null) return;
+        String catalog = null;
+        try { catalog = c.getCatalog(); } catch (Exception ignored) {}
+        leased.put(c, new Lease(System.currentTimeMillis(), catalog));
+    }
+
+    /**
+     * Возвращает соединение в пул. Если пул выключен/полон, соединение закрыто
+     * или отработало max lifetime — соединение закрывается.
+     */
+    public static void release(String key, Connection c) {
+        if (c == null) return;
+        Lease lease = leased.remove(c);
+        long now = System.currentTimeMillis();
+
+        if (!isEnabled() || lease == null || now - lease.createdAt() >= maxLifetimeMs
+                || !resetSession(c, lease)) {
+            closeSilently(c);
+            return;
+        }
+
+        Deque<Pooled> dq = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+        synchronized (dq) {
+            if (dq.size() < maxPerKey) {
+                dq.addFirst(new Pooled(c, lease, now));
+                return;
+            }
+        }
+        closeSilently(c);
+    }
+
+    /** Закрыть соединение, не возвращая его в пул (например, после сетевой ошибки). */
+    public static void invalidate(Connection c) {
+        if (c == null) return;
+        leased.remove(c);
+        closeSilently(c);
+    }
+
+    /** Закрывает соединения, простаивающие дольше idle timeout или отработавшие max lifetime. */
+    public static void evictIdle() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Deque<Pooled> dq : idle.values()) {
+            synchronized (dq) {
+                for (Iterator<Pooled> it = dq.iterator(); it.hasNext(); ) {
+                    Pooled p = it.next();
+                    if (isExpired(p, now)) {
+                        it.remove();
+                        closeSilently(p.conn());
+                        evicted++;
+                    }
+                }
+            }
+        }
+        if (evicted > 0) {
+            LogService.printf("[POOL] evicted %d idle connections%n", evicted);
+        }
+    }
+
+    /** Закрывает все простаивающие соединения (при завершении процесса). */
+    public static void closeAll() {
+        int closed = 0;
+        for (Deque<Pooled> dq : idle.values()) {
+            synchronized (dq) {
+                for (Pooled p : dq) {
+                    closeSilently(p.conn());
+                    closed++;
+                }
+                dq.clear();
+            }
+        }
+        idle.clear();
+        if (closed > 0) {
+            LogService.printf("[POOL] closed %d pooled connections%n", closed);
+        }
+    }
+
+    /* ===================== helpers ===================== */
+
+    private static boolean isExpired(Pooled p, long now) {
+        return now - p.lastUsedAt() >= idleTimeoutMs
+                || now - p.lease().createdAt() >= maxLifetimeMs;
+    }
+
+    private static boolean isAlive(Connection c) {
+        try {
+            return !c.isClosed() && c.isValid(VALIDATION_TIMEOUT_SEC);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Возвращает сессию в исходное состояние: откат незавершённой транзакции
+     * и исходная БД, если запрос сделал USE. false — соединение лучше закрыть.
+     */
+    private static boolean resetSession(Connection c, Lease lease) {
+        try {
+            if (c.isClosed()) return false;
+            if (!c.getAutoCommit()) {
+                c.rollback();
+                c.setAutoCommit(true);
+            }
+            if (lease.catalog() != null && !Objects.equals(lease.catalog(), c.getCatalog())) {
+                c.setCatalog(lease.catalog());
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void closeSilently(Connection c) {
+        try { if (c != null && !c.isClosed()) c.close(); } catch (Exception ignored) {}
+    }
+}
@@ -4,19 +4,128 @@ import model.DbType;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 import logging.LogService;
+import scheduler.LatencyProbe;
+import scheduler.WorkerExecutors;
 
 /**
  * Утилитный класс для получения JDBC-соединения.
  *
  * Поддерживает MSSQL и OCEANBASE (mysql-connector-j). Конкретный драйвер
  * выбирается по {@link DbType}.
+ *
+ * Блокирующий {@code DriverManager.getConnection} выполняется на собственном
+ * пуле потоков «db-connect-N» (размер — {@code ConnectThreadPoolSize}), а не на
+ * общем ForkJoinPool, размер которого привязан к числу CPU. Дополнительно
+ * можно ограничить темп новых логинов ({@code MaxConnectsPerSec}), чтобы
+ * старт опроса тысяч инстансов не превращался в «connect storm».
+ *
+ * Временные ошибки подключения (см. {@link SqlErrorClassifier#isRetryable})
+ * повторяются с паузой со случайным разбросом; общее число повторов за цикл
+ * ограничено бюджетом {@code ConnectRetryBudget}.
+ *
+ * В режиме {@code ExecutorMode=VIRTUAL} подключения идут на виртуальных потоках,
+ * а число одновременных подключений ограничивает семафор на
+ * {@code ConnectThreadPoolSize} разрешений.
  */
 public final class DbConnector {
 
+    private static volatile ExecutorService connectExecutor = newConnectExecutor(32);
+    /** Только для виртуальных потоков: ограничение одновременных подключений. */
+    private static volatile Semaphore connectPermits = null;
+    private static volatile int connectThreads = 32;
+
+    /** Минимальный интервал между стартами подключений, нс (0 — без ограничения). */
+    private static volatile long minConnectIntervalNs = 0;
+    private static final AtomicLong nextConnectSlot = new AtomicLong(System.nanoTime());
+
+    /* ---- повторы подключения при временных ошибках ---- */
+    private static final long MAX_RETRY_DELAY_MS = 5_000;
+    private static volatile int  maxRetries      = 2;
+    private static volatile long retryBaseMs     = 200;
+    private static volatile int  retryBudgetSize = 100;
+    private static final AtomicInteger retryBudget = new AtomicInteger(100);
+
+    /* ---- метрики (сбрасываются в logStats) ---- */
+    private static final LongAdder   connectsOk      = new LongAdder();
+    private static final LongAdder   connectsFailed  = new LongAdder();
+    private static final LongAdder   poolHits        = new LongAdder();
+    private static final LongAdder   retries         = new LongAdder();
+    private static final LongAdder   queueWaitNanos  = new LongAdder();
+    private static final LongAdder   connectNanos    = new LongAdder();
+    private static final AtomicInteger peakQueueDepth = new AtomicInteger();
+
     private DbConnector() {}
 
+    /**
+     * Настройка из AppConfig. Вызывается один раз при старте.
+     * @param threads            размер пула подключений (для VIRTUAL — число разрешений)
+     * @param maxConnectsPerSec  максимум новых подключений в секунду (0 — без ограничения)
+     * @param executorMode       PLATFORM | VIRTUAL
+     */
+    public static synchronized void configure(int threads, int maxConnectsPerSec, String executorMode) {
+        int n = Math.max(1, threads);
+        ExecutorService old = connectExecutor;
+        ExecutorService virtual = WorkerExecutors.isVirtual(executorMode)
+                ? WorkerExecutors.newVirtualPerTaskExecutor("db-connect-")
+                : null;
+        connectExecutor = virtual != null ? virtual : newConnectExecutor(n);
+        connectPermits  = virtual != null ? new Semaphore(n) : null;
+        connectThreads  = n;
+        old.shutdown();
+        minConnectIntervalNs = maxConnectsPerSec > 0 ? 1_000_000_000L / maxConnectsPerSec : 0;
+        LogService.printf("[DB] connect executor: %s=%d, maxConnectsPerSec=%s%n",
+                virtual != null ? "virtual, permits" : "threads", n,
+                maxConnectsPerSec > 0 ? maxConnectsPerSec : "unlimited");
+    }
+
+    /**
+     * Политика повторов подключения при временных ошибках (failover листенера,
+     * обрыв пакета): до {@code retriesPerConnect} повторов с паузой «jitter» от
+     * {@code baseDelayMs}, но не больше {@code budgetPerRun} повторов за цикл.
+     */
+    public static void configureRetries(int retriesPerConnect, int baseDelayMs, int budgetPerRun) {
+        maxRetries      = Math.max(0, retriesPerConnect);
+        retryBaseMs     = Math.max(1, baseDelayMs);
+        retryBudgetSize = Math.max(0, budgetPerRun);
+        retryBudget.set(retryBudgetSize);
+    }
+
+    /** Начало цикла: бюджет повторов восстанавливается. */
+    public static void resetRetryBudget() {
+        retryBudget.set(retryBudgetSize);
+    }
+
+    /** Печатает и сбрасывает метрики подключений за прошедший цикл. */
+    public static void logStats() {
+        long ok     = connectsOk.sumThenReset();
+        long failed = connectsFailed.sumThenReset();
+        long hits   = poolHits.sumThenReset();
+        long retried = retries.sumThenReset();
+        long waitMs = queueWaitNanos.sumThenReset() / 1_000_000;
+        long connMs = connectNanos.sumThenReset() / 1_000_000;
+        long total  = ok + failed + hits;
+        long opened = ok + failed;
+        LogService.printf("[DB-STATS] connects: new=%d failed=%d pooled=%d retried=%d; queue: now=%d peak=%d, " +
+                        "avg wait %d ms; avg connect %d ms; threads active=%d/%d%n",
+                ok, failed, hits, retried, queueDepth(), peakQueueDepth.getAndSet(0),
+                total == 0 ? 0 : waitMs / total, opened == 0 ? 0 : connMs / opened,
+                activeConnects(), connectThreads);
+    }
+
     /**
      * Открывает соединение с базой данных асинхронно. Метод вызывается из
      * {@link db.ServerRequest#execute(java.util.concurrent.Executor)} и
@@ -29,21 +138,145 @@ public final class DbConnector {
     public static CompletableFuture<Connection> getConnectionAsync(
             DbType dbType, String url, String user, String password) {
 
-        return CompletableFuture.supplyAsync(() -> {
+        return submit(() -> open(dbType, url, user, password));
+    }
+
+    /**
+     * То же, что {@link #getConnectionAsync}, но сначала пробует взять тёплое
+     * соединение из {@link ConnectionPool} по ключу инстанса. Новое соединение
+     * регистрируется в пуле и после опроса возвращается через
+     * {@link ConnectionPool#release(String, Connection)}.
+     */
+    public static CompletableFuture<Connection> getPooledConnectionAsync(
+            String poolKey, DbType dbType, String url, String user, String password) {
+
+        return submit(() -> {
+            Connection pooled = ConnectionPool.borrow(poolKey);
+            if (pooled != null) {
+                poolHits.increment();
+                return pooled;
+            }
+
+            Connection c = open(dbType, url, user, password);
+            ConnectionPool.track(c);
+            return c;
+        });
+    }
+
+    /** Запуск задачи на connect-пуле с учётом времени ожидания в очереди. */
+    private static CompletableFuture<Connection> submit(Supplier<Connection> task) {
+        long queuedAt = System.nanoTime();
+        Semaphore permits = connectPermits;
+        CompletableFuture<Connection> f = CompletableFuture.supplyAsync(() -> {
+            if (permits == null) {
+                queueWaitNanos.add(System.nanoTime() - queuedAt);
+                return task.get();
+            }
+            permits.acquireUninterruptibly();
             try {
-                String driverClass = dbType.driverClass();
-                Class.forName(driverClass);
+                queueWaitNanos.add(System.nanoTime() - queuedAt);
+                return task.get();
+            } finally {
+                permits.release();
+            }
+        }, connectExecutor);
+        peakQueueDepth.accumulateAndGet(queueDepth(), Math::max);
+        return f;
+    }
+
+    private static int queueDepth() {
+        Semaphore permits = connectPermits;
+        if (permits != null) return permits.getQueueLength();
+        return connectExecutor instanceof ThreadPoolExecutor tpe ? tpe.getQueue().size() : 0;
+    }
+
+    private static int activeConnects() {
+        Semaphore permits = connectPermits;
+        if (permits != null) return connectThreads - permits.availablePermits();
+        return connectExecutor instanceof ThreadPoolExecutor tpe ? tpe.getActiveCount() : 0;
+    }
+
+    private static Connection open(DbType dbType, String url, String user, String password) {
+        try {
+            String driverClass = dbType.driverClass();
+            Class.forName(driverClass);
+            for (int attempt = 0; ; attempt++) {
+                awaitConnectSlot();
                 LogService.printf("[DB] Connecting [%s]: url=%s user=%s%n", dbType, url, user);
-                return DriverManager.getConnection(url, user, password);
-            } catch (ClassNotFoundException e) {
-                LogService.errorf("[DB-ERROR] JDBC driver not found for %s. " +
-                        "Проверьте, что соответствующий JAR есть в classpath.%n", dbType);
-                throw new RuntimeException(e);
-            } catch (Exception ex) {
-                LogService.errorf("[DB-ERROR] Can't connect: url=%s user=%s – %s%n",
-                        url, user, ex.getMessage());
-                throw new RuntimeException(ex);
+                long t0 = System.nanoTime();
+                try {
+                    Connection c = DriverManager.getConnection(url, user, password);
+                    long elapsed = System.nanoTime() - t0;
+                    connectNanos.add(elapsed);
+                    connectsOk.increment();
+                    LatencyProbe.record(LatencyProbe.Kind.CONNECT, elapsed);
+                    return c;
+                } catch (SQLException e) {
+                    // до паузы перед повтором — иначе она попала бы в среднее время подключения
+                    connectNanos.add(System.nanoTime() - t0);
+                    if (attempt >= maxRetries || !SqlErrorClassifier.isRetryable(e) || !takeRetryToken()) {
+                        connectsFailed.increment();
+                        throw e;
+                    }
+                    long sleepMs = retryDelayMs(attempt);
+                    retries.increment();
+                    LogService.errorf("[DB-RETRY] url=%s attempt %d failed (%s: %s), retry in %d ms%n",
+                            url, attempt + 1, e.getSQLState(), e.getMessage(), sleepMs);
+                    try {
+                        Thread.sleep(sleepMs);
+                    } catch (InterruptedException ie) {
+                        // остановка/отмена: флаг прерывания сохраняем, больше не пытаемся
+                        Thread.currentThread().interrupt();
+                        connectsFailed.increment();
+                        e.addSuppressed(ie);
+                        throw e;
+                    }
+                }
             }
-        });
+        } catch (ClassNotFoundException e) {
+            LogService.errorf("[DB-ERROR] JDBC driver not found for %s. " +
+                    "Проверьте, что соответствующий JAR есть в classpath.%n", dbType);
+            throw new RuntimeException(e);
+        } catch (Exception ex) {
+            LogService.errorf("[DB-ERROR] Can't connect: url=%s user=%s – %s%n",
+                    url, user, ex.getMessage());
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Бюджет повторов на цикл: массовая авария не должна умножать нагрузку. */
+    private static boolean takeRetryToken() {
+        return retryBudget.getAndUpdate(v -> v > 0 ? v - 1 : 0) > 0;
+    }
+
+    /** Пауза со случайным разбросом в [cap/2 .. cap], где cap = base·2^attempt, но не больше MAX_RETRY_DELAY_MS. */
+    private static long retryDelayMs(int attempt) {
+        long cap = Math.min(MAX_RETRY_DELAY_MS, retryBaseMs << Math.min(attempt, 10));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    /**
+     * Ограничитель темпа подключений: каждый вызов резервирует следующий слот
+     * (CAS без блокировок) и ждёт до его наступления.
+     */
+    private static void awaitConnectSlot() {
+        long interval = minConnectIntervalNs;
+        if (interval <= 0) return;
+        long now = System.nanoTime();
+        long prev = nextConnectSlot.getAndAccumulate(now, (p, n) -> Math.max(p, n) + interval);
+        long wait = Math.max(prev, now) - now;
+        if (wait > 0) LockSupport.parkNanos(wait);
+    }
+
+    private static ThreadPoolExecutor newConnectExecutor(int threads) {
+        AtomicInteger seq = new AtomicInteger();
+        ThreadPoolExecutor ex = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "db-connect-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        ex.allowCoreThreadTimeOut(true);
+        return ex;
     }
 }
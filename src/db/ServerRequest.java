@@ -3,78 +3,424 @@ package db;
 import model.DbType;
 import model.InstanceConfig;
 import model.QueryRequest;
-import processor.ResponseProcessor;
+import processor.ResultBatch;
+import processor.ResultFanOut;
+import scheduler.DurationHistory;
+import scheduler.LatencyProbe;
+import scheduler.QuerySchedule;
 import logging.LogService;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * Задача на выполнение набора запросов для одного инстанса (MSSQL/OceanBase).
- * Последовательно выполняет запросы и передаёт результаты в {@link processor.ResponseProcessor}.
+ * Выполняет запросы и передаёт результаты в {@link processor.ResultFanOut}.
+ *
+ * По умолчанию запросы идут последовательно на одном соединении. Если для
+ * инстанса разрешено {@code MaxQueriesPerInstance > 1}, список делится на
+ * «дорожки» (lanes): каждая дорожка — своё соединение и свой последовательный
+ * прогон, дорожки работают параллельно. Так время опроса сервера сводится
+ * к самому медленному запросу, а не к сумме всех.
+ *
+ * При {@code BatchQueries=true} (только MSSQL) совместимые запросы дорожки
+ * уходят на сервер одним T-SQL батчем — один round trip вместо N. Result set-ы
+ * разбираются через {@code getMoreResults()} и раздаются по {@code requestId}
+ * в исходном порядке. Если батч падает на середине, недоставленные запросы
+ * выполняются по одному, чтобы ошибка одного не отнимала результаты у других.
+ *
+ * Если передана {@link DurationHistory}, время опроса инстанса и каждого
+ * запроса записывается в неё, а запросы раскладываются по дорожкам с учётом
+ * их ожидаемой длительности (самые долгие — в разные дорожки).
+ *
+ * Если передано {@link QuerySchedule}, выполнившийся запрос отмечается в нём
+ * ({@code markRun}); пропущенный или упавший — нет.
  */
 public record ServerRequest(
         InstanceConfig cfg,
         List<QueryRequest> queries,
-        ResponseProcessor responseProcessor
+        ResultFanOut responseProcessor,
+        int maxQueriesPerInstance,
+        boolean batchQueries,
+        DurationHistory durations,
+        QuerySchedule schedule
 ) {
 
+    /** Жёсткий потолок параллельных запросов на инстанс — чтобы не «положить» маленький сервер. */
+    public static final int MAX_QUERIES_PER_INSTANCE_CAP = 16;
+
+    /** Запрос дорожки, соединение которой уже оборвалось: на сервер он не отправляется. */
+    private static final String LANE_LOST =
+            SqlErrorClassifier.CONNECTION_LOST_PREFIX + "connection lost earlier in this lane, query not started";
+
+    /** QueryTimeoutSec из AppConfig — для запросов без собственного timeoutSec; 0 — без таймаута. */
+    private static volatile int defaultTimeoutSec;
+
+    public static void configureDefaultTimeout(int sec) {
+        defaultTimeoutSec = Math.max(0, sec);
+    }
+
+    public ServerRequest(InstanceConfig cfg, List<QueryRequest> queries, ResultFanOut responseProcessor) {
+        this(cfg, queries, responseProcessor, 1, false, null, null);
+    }
+
     public CompletableFuture<Void> execute(Executor executor) {
+        if (ActiveStatements.isExpired()) {
+            queries.forEach(qr -> reportError(qr, "Error: Timeout: run deadline exceeded, server not polled"));
+            return CompletableFuture.completedFuture(null);
+        }
+
         DbType dbType = cfg.dbType == null ? DbType.MSSQL : cfg.dbType;
         String url = buildUrl(cfg, dbType);
         String effectiveUser = buildUserName(cfg, dbType);
+
+        if (!CircuitBreakerRegistry.tryAcquire(cfg.ci)) {
+            reportConnectError(queries, String.format(
+                    "%s: url=%s; user=%s – circuit breaker open, next probe in %d s",
+                    SqlErrorClassifier.CONNECT_ERROR_PREFIX, url, effectiveUser,
+                    CircuitBreakerRegistry.secondsUntilProbe(cfg.ci)));
+            return CompletableFuture.completedFuture(null);
+        }
+
         LogService.printf("[START] CI=%s dbType=%s url=%s user=%s%n",
                 cfg.ci, dbType, url, effectiveUser);
 
-        return DbConnector.getConnectionAsync(dbType, url, effectiveUser, cfg.password)
-                .thenCompose(conn -> runSequentially(conn, executor)
-                        .whenComplete((v, ex) -> closeSilently(conn)))
+        String poolKey = cfg.ci + "|" + url + "|" + effectiveUser;
+
+        List<List<QueryRequest>> lanes = splitIntoLanes(effectiveParallelism());
+        if (lanes.size() > 1) {
+            LogService.printf("[START] CI=%s: %d queries in %d parallel lanes%n",
+                    cfg.ci, queries.size(), lanes.size());
+        }
+
+        long t0 = System.nanoTime();
+        BreakerOutcome breaker = new BreakerOutcome(cfg.ci, lanes.size());
+        CompletableFuture<Void> all = CompletableFuture.allOf(lanes.stream()
+                .map(lane -> runLane(lane, poolKey, dbType, url, effectiveUser, executor, breaker))
+                .toArray(CompletableFuture[]::new));
+        if (durations == null) return all;
+        return all.whenComplete((v, ex) ->
+                durations.recordInstance(cfg.ci, (System.nanoTime() - t0) / 1_000_000));
+    }
+
+    /**
+     * Один исход подключения на инстанс для circuit breaker, сколько бы ни было
+     * дорожек: успех — как только подключилась любая, отказ — когда не
+     * подключилась ни одна. Иначе N дорожек недоступного сервера давали бы
+     * N отказов за цикл, а успех и отказ одной пробы гонялись бы между собой.
+     */
+    private static final class BreakerOutcome {
+        private final String ci;
+        private final AtomicInteger pending;
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        BreakerOutcome(String ci, int lanes) {
+            this.ci = ci;
+            this.pending = new AtomicInteger(lanes);
+        }
+
+        void connected() {
+            if (reported.compareAndSet(false, true)) CircuitBreakerRegistry.onSuccess(ci);
+        }
+
+        void failed(Throwable ex) {
+            if (pending.decrementAndGet() == 0 && reported.compareAndSet(false, true)) {
+                CircuitBreakerRegistry.onFailure(ci, SqlErrorClassifier.classify(ex));
+            }
+        }
+    }
+
+    /** Одна дорожка: своё соединение + последовательный прогон своей части запросов. */
+    private CompletableFuture<Void> runLane(List<QueryRequest> lane, String poolKey, DbType dbType,
+                                            String url, String effectiveUser, Executor executor,
+                                            BreakerOutcome breaker) {
+        return DbConnector.getPooledConnectionAsync(poolKey, dbType, url, effectiveUser, cfg.password)
+                .whenComplete((conn, ex) -> {
+                    if (ex == null) breaker.connected();
+                    else breaker.failed(ex);
+                })
+                .thenCompose(conn -> {
+                    AtomicBoolean lost = new AtomicBoolean();
+                    return runSequentially(conn, lane, dbType, executor, lost)
+                            .whenComplete((v, ex) -> {
+                                // оборванное соединение в пул не возвращаем — следующий запрос упал бы на нём
+                                if (lost.get() || (ex != null
+                                        && SqlErrorClassifier.classify(ex) == SqlErrorClassifier.Kind.CONNECT)) {
+                                    ConnectionPool.invalidate(conn);
+                                } else {
+                                    ConnectionPool.release(poolKey, conn);
+                                }
+                            });
+                })
                 .exceptionally(ex -> {
                     String errorText = formatConnectError(url, effectiveUser, ex);
-                    reportConnectErrorToAllQueries(errorText);
+                    reportConnectError(lane, errorText);
                     return null;
                 });
     }
 
-    private CompletableFuture<Void> runSequentially(Connection conn, Executor executor) {
+    /** lost — выставляется, если запрос дорожки упал с ошибкой соединения (CONNECT). */
+    private CompletableFuture<Void> runSequentially(Connection conn, List<QueryRequest> lane,
+                                                    DbType dbType, Executor executor, AtomicBoolean lost) {
         CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
-        for (QueryRequest qr : queries) {
+
+        List<QueryRequest> batch = batchQueries && dbType == DbType.MSSQL
+                ? lane.stream().filter(QueryRequest::isBatchable).toList()
+                : List.of();
+        Set<QueryRequest> batched = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (batch.size() > 1) {
+            batched.addAll(batch);
+            chain = chain.thenCompose(v ->
+                    CompletableFuture.runAsync(() -> execBatch(conn, batch, lost), executor));
+        }
+
+        for (QueryRequest qr : lane) {
+            if (batched.contains(qr)) continue;
             chain = chain.thenCompose(v ->
-                    CompletableFuture.runAsync(() -> execOne(conn, qr), executor));
+                    CompletableFuture.runAsync(() -> execOne(conn, qr, lost), executor));
         }
         return chain;
     }
 
+    /** Параметр инстанса важнее глобального; результат ограничен [1 .. CAP]. */
+    private int effectiveParallelism() {
+        int n = cfg.maxQueriesPerInstance != null ? cfg.maxQueriesPerInstance : maxQueriesPerInstance;
+        return Math.max(1, Math.min(n, MAX_QUERIES_PER_INSTANCE_CAP));
+    }
+
+    /**
+     * Делит запросы на {@code n} дорожек, сохраняя исходный порядок внутри дорожки:
+     * по истории длительностей (LPT), а без неё — по кругу.
+     */
+    private List<List<QueryRequest>> splitIntoLanes(int n) {
+        int laneCount = Math.max(1, Math.min(n, queries.size()));
+        if (laneCount == 1) return List.of(queries);
+        if (durations != null) return durations.assignLanes(cfg.ci, queries, laneCount);
+
+        List<List<QueryRequest>> lanes = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) lanes.add(new ArrayList<>());
+        for (int i = 0; i < queries.size(); i++) {
+            lanes.get(i % laneCount).add(queries.get(i));
+        }
+        return lanes;
+    }
+
     /** Выполнить один запрос для сервера */
-    private void execOne(Connection conn, QueryRequest qr) {
+    private void execOne(Connection conn, QueryRequest qr, AtomicBoolean lost) {
         String resultExec = "Ok";
 
-        try (var st = conn.createStatement();
-             var rs = st.executeQuery(qr.queryText())) {
-            responseProcessor.handle(cfg, qr.requestId(), rs, resultExec);
-        } catch (SQLException ex) {
-            resultExec = "Error: " + ex.getMessage();
-            LogService.errorf("[CI=%s][ReqID=%s] SQL-ERROR: %s%n", cfg.ci, qr.requestId(), ex.getMessage());
+        if (ActiveStatements.isExpired()) {
+            reportError(qr, "Error: Timeout: run deadline exceeded, query not started");
+            return;
+        }
+        if (lost.get()) {
+            reportError(qr, LANE_LOST);
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        ResultBatch batch = null;
+        ResultCursor cur = new ResultCursor();
+        try (var st = conn.createStatement()) {
+            int timeout = timeoutSec(qr);
+            if (timeout > 0) {
+                st.setQueryTimeout(timeout);
+            }
+            ActiveStatements.register(st, cfg.ci, qr.requestId());
             try {
-                responseProcessor.handle(cfg, qr.requestId(), null, resultExec);
-            } catch (Exception handleEx) {
-                LogService.errorf("[CI=%s][ReqID=%s] handle error after SQL fail: %s%n",
-                        cfg.ci, qr.requestId(), handleEx.getMessage());
+                if (qr.expectedResultSets() > 1) {
+                    drainResults(st, st.execute(qr.queryText()), List.of(qr), cur);
+                    if (cur.query == 0) {
+                        // отданные result set-ы уже записаны, недостающие _N — ошибка, как в execBatch
+                        resultExec = cur.resultSet > 0
+                                ? "Error: expected " + qr.expectedResultSets() + " result sets, got " + cur.resultSet
+                                : "Error: query returned no result set";
+                        reportError(qr, resultExec);
+                    }
+                } else {
+                    // результат вычитывается целиком, курсор закрывается до записи в получатель
+                    try (var rs = st.executeQuery(qr.queryText())) {
+                        batch = ResultBatch.from(rs);
+                    }
+                }
+            } finally {
+                ActiveStatements.unregister(st);
+            }
+        } catch (SQLException ex) {
+            SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(ex);
+            if (ActiveStatements.isExpired()) {
+                resultExec = "Error: Timeout: run deadline exceeded – " + ex.getMessage();
+            } else if (kind == SqlErrorClassifier.Kind.TIMEOUT) {
+                resultExec = "Error: Timeout: " + ex.getMessage();
+            } else if (kind == SqlErrorClassifier.Kind.CONNECT) {
+                lost.set(true);
+                resultExec = SqlErrorClassifier.CONNECTION_LOST_PREFIX + ex.getMessage();
+            } else {
+                resultExec = "Error: " + ex.getMessage();
             }
+            LogService.errorf("[CI=%s][ReqID=%s] SQL-ERROR: %s%n", cfg.ci, qr.requestId(), ex.getMessage());
+            reportError(qr, resultExec);
         } catch (Exception ex) {
             resultExec = "Error: " + ex.getMessage();
             LogService.errorf("[CI=%s][ReqID=%s] ERROR: %s%n", cfg.ci, qr.requestId(), ex.getMessage());
+            reportError(qr, resultExec);
+        }
+        // время на источнике — без записи в получатель, иначе медленный получатель выглядит как медленный сервер
+        long sourceNanos = System.nanoTime() - t0 - cur.sinkNanos;
+        if ("Ok".equals(resultExec)) {
+            if (qr.expectedResultSets() <= 1) markRun(qr);   // несколько result set-ов отмечает drainResults
+            LatencyProbe.recordQuery(cfg.ci, qr.requestId(), sourceNanos);
+        }
+        if (batch != null) {
             try {
-                responseProcessor.handle(cfg, qr.requestId(), null, resultExec);
-            } catch (Exception handleEx) {
-                LogService.errorf("[CI=%s][ReqID=%s] handle error after General fail: %s%n",
-                        cfg.ci, qr.requestId(), handleEx.getMessage());
+                responseProcessor.handle(cfg, qr.requestId(), batch, resultExec);
+            } catch (Exception ex) {
+                LogService.errorf("[CI=%s][ReqID=%s] ERROR: %s%n", cfg.ci, qr.requestId(), ex.getMessage());
+                reportError(qr, "Error: " + ex.getMessage());
+            }
+        }
+        long elapsed = System.nanoTime() - t0;
+        if (durations != null) {
+            durations.recordQuery(cfg.ci, qr.requestId(), elapsed / 1_000_000);
+        }
+    }
+
+    /* ===================== BATCH ===================== */
+
+    /** Позиция разбора результатов: какой по счёту запрос и какой его result set. */
+    private static final class ResultCursor {
+        int query;
+        int resultSet;
+        /** Сколько ушло на запись result set-ов в получатель (вычитается из времени запроса). */
+        long sinkNanos;
+    }
+
+    /**
+     * Выполняет группу запросов одним батчем. Таймаут батча — сумма таймаутов
+     * запросов (если хотя бы у одного таймаута нет — без таймаута).
+     */
+    private void execBatch(Connection conn, List<QueryRequest> group, AtomicBoolean lost) {
+        if (ActiveStatements.isExpired()) {
+            group.forEach(qr -> reportError(qr, "Error: Timeout: run deadline exceeded, query not started"));
+            return;
+        }
+        if (lost.get()) {
+            group.forEach(qr -> reportError(qr, LANE_LOST));
+            return;
+        }
+
+        ResultCursor cur = new ResultCursor();
+        boolean failed = false;
+        try (Statement st = conn.createStatement()) {
+            int timeout = batchTimeoutSec(group);
+            if (timeout > 0) st.setQueryTimeout(timeout);
+            ActiveStatements.register(st, cfg.ci, "BATCH(" + group.size() + ")");
+            try {
+                drainResults(st, st.execute(buildBatchSql(group)), group, cur);
+            } finally {
+                ActiveStatements.unregister(st);
+            }
+        } catch (Exception ex) {
+            failed = true;
+            if (SqlErrorClassifier.classify(ex) == SqlErrorClassifier.Kind.CONNECT) lost.set(true);
+            String at = cur.query < group.size() ? group.get(cur.query).requestId() : "end";
+            LogService.errorf("[CI=%s] BATCH failed at ReqID=%s: %s – running the rest one by one%n",
+                    cfg.ci, at, ex.getMessage());
+        }
+
+        if (cur.query < group.size() && cur.resultSet > 0) {
+            // запрос успел отдать часть result set-ов — повтор задвоил бы их
+            reportError(group.get(cur.query), failed
+                    ? "Error: batch interrupted after " + cur.resultSet + " result set(s)"
+                    : "Error: expected " + group.get(cur.query).expectedResultSets()
+                      + " result sets, got " + cur.resultSet);
+            cur.query++;
+        }
+        for (int i = cur.query; i < group.size(); i++) {
+            if (failed) execOne(conn, group.get(i), lost);
+            else reportError(group.get(i), "Error: query returned no result set");
+        }
+    }
+
+    /**
+     * Обходит все результаты Statement: каждый result set отдаётся очередному
+     * запросу группы (с учётом {@code resultSets}), счётчики обновлений пропускаются.
+     */
+    private void drainResults(Statement st, boolean isResultSet, List<QueryRequest> group,
+                              ResultCursor cur) throws Exception {
+        while (true) {
+            if (isResultSet) {
+                try (ResultSet rs = st.getResultSet()) {
+                    if (cur.query < group.size()) {
+                        QueryRequest qr = group.get(cur.query);
+                        ResultBatch batch = ResultBatch.from(rs);   // чтение курсора — время источника
+                        long t0 = System.nanoTime();
+                        responseProcessor.handle(cfg, qr.resultSetId(cur.resultSet), batch, "Ok");
+                        cur.sinkNanos += System.nanoTime() - t0;
+                        if (++cur.resultSet >= qr.expectedResultSets()) {
+                            markRun(qr);
+                            cur.query++;
+                            cur.resultSet = 0;
+                        }
+                    } else {
+                        LogService.errorf("[CI=%s] extra result set ignored%n", cfg.ci);
+                    }
+                }
+            } else if (st.getUpdateCount() == -1) {
+                return;
             }
+            isResultSet = st.getMoreResults();
+        }
+    }
+
+    private void markRun(QueryRequest qr) {
+        if (schedule != null) schedule.markRun(cfg.ci, qr.requestId());
+    }
+
+    private static String buildBatchSql(List<QueryRequest> group) {
+        StringBuilder sb = new StringBuilder();
+        for (QueryRequest qr : group) {
+            String text = qr.queryText().strip();
+            while (text.endsWith(";")) text = text.substring(0, text.length() - 1).stripTrailing();
+            sb.append(text).append(";\n");
+        }
+        return sb.toString();
+    }
+
+    private static int batchTimeoutSec(List<QueryRequest> group) {
+        int sum = 0;
+        for (QueryRequest qr : group) {
+            int timeout = timeoutSec(qr);
+            if (timeout <= 0) return 0;
+            sum += timeout;
+        }
+        return sum;
+    }
+
+    /** Собственный таймаут запроса, а если он не задан — глобальный QueryTimeoutSec. */
+    private static int timeoutSec(QueryRequest qr) {
+        return qr.timeoutSec() != null ? qr.timeoutSec() : defaultTimeoutSec;
+    }
+
+    private void reportError(QueryRequest qr, String resultExec) {
+        try {
+            responseProcessor.handle(cfg, qr.requestId(), (ResultBatch) null, resultExec);
+        } catch (Exception handleEx) {
+            LogService.errorf("[CI=%s][ReqID=%s] handle error after fail: %s%n",
+                    cfg.ci, qr.requestId(), handleEx.getMessage());
         }
     }
 
@@ -82,7 +428,8 @@ public record ServerRequest(
 
     private static String formatConnectError(String url, String user, Throwable ex) {
         String root = rootCause(ex).getMessage();
-        return String.format("[DB-ERROR] Can't connect: url=%s; user=%s – %s", url, user, root);
+        return String.format("%s: url=%s; user=%s – %s",
+                SqlErrorClassifier.CONNECT_ERROR_PREFIX, url, user, root);
     }
 
     private static Throwable rootCause(Throwable t) {
@@ -93,12 +440,12 @@ public record ServerRequest(
         return cur;
     }
 
-    private void reportConnectErrorToAllQueries(String errorText) {
+    private void reportConnectError(List<QueryRequest> failed, String errorText) {
         LogService.errorf("[CI=%s] CONNECT-ERROR: %s%n", cfg.ci, errorText);
 
-        for (QueryRequest qr : queries) {
+        for (QueryRequest qr : failed) {
             try {
-                responseProcessor.handle(cfg, qr.requestId(), null, errorText);
+                responseProcessor.handle(cfg, qr.requestId(), (ResultBatch) null, errorText);
             } catch (Exception handleEx) {
                 LogService.errorf("[CI=%s][ReqID=%s] handle error after CONNECT fail: %s%n",
                         cfg.ci, qr.requestId(), handleEx.getMessage());
@@ -106,7 +453,7 @@ public record ServerRequest(
         }
     }
 
-    /* ===================== URL / USER / CLOSE ===================== */
+    /* ===================== URL / USER ===================== */
 
     /**
      * Строит JDBC URL для соответствующего типа СУБД.
@@ -155,8 +502,4 @@ public record ServerRequest(
         }
         return sb.toString();
     }
-
-    private static void closeSilently(Connection c) {
-        try { if (c != null && !c.isClosed()) c.close(); } catch (Exception ignored) {}
-    }
 }
@@ -0,0 +1,127 @@
+package db;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.sql.SQLException;
+import java.sql.SQLInvalidAuthorizationSpecException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTransientException;
+import java.util.Set;
+
+/**
+ * Классификация ошибок JDBC по SQLState и коду ошибки вендора
+ * (mssql-jdbc и mysql-connector-j), а не по тексту сообщения.
+ *
+ * Используется circuit breaker-ом (какие ошибки считать «сервер недоступен»),
+ * политикой повторов и для пометки результатов, по которым
+ * PrometheusResultWriter отправляет availability=0.
+ */
+public final class SqlErrorClassifier {
+
+    public enum Kind {
+        /** сеть / TCP / DNS / обрыв соединения — сервер недоступен */
+        CONNECT,
+        /** логин отклонён — сервер жив, но нас не пускает */
+        AUTH,
+        /** таймаут логина или запроса */
+        TIMEOUT,
+        /** временная ошибка на стороне сервера (deadlock, failover, throttling) */
+        TRANSIENT,
+        /** ошибка самого запроса (синтаксис, права на объект и т.п.) */
+        QUERY,
+        UNKNOWN
+    }
+
+    /** Префикс текста результата для любой ошибки на этапе подключения. */
+    public static final String CONNECT_ERROR_PREFIX = "[DB-ERROR] Can't connect";
+    /** Префикс текста результата, если соединение оборвалось во время запроса. */
+    public static final String CONNECTION_LOST_PREFIX = "Error: Connection lost: ";
+
+    /** MSSQL: 18456 login failed, 18452 untrusted domain, 18486-18488 locked/expired, 4060 cannot open db. */
+    private static final Set<Integer> MSSQL_AUTH = Set.of(18456, 18452, 18486, 18487, 18488, 4060);
+    /** MSSQL: 1205 deadlock, Azure/AG failover и throttling. */
+    private static final Set<Integer> MSSQL_TRANSIENT = Set.of(1205, 4221, 40197, 40501, 40613, 49918, 49919, 49920);
+    /** MSSQL: сетевые ошибки (Named Pipes / winsock). */
+    private static final Set<Integer> MSSQL_CONNECT = Set.of(233, 10053, 10054, 10060, 10061, 11001);
+    /** MySQL/OB: 1045 access denied, 1044 db access denied, 1049 unknown db. */
+    private static final Set<Integer> MYSQL_AUTH = Set.of(1044, 1045, 1049);
+    /** MySQL/OB: 1040 too many connections, 1213 deadlock, 1205 lock wait timeout. */
+    private static final Set<Integer> MYSQL_TRANSIENT = Set.of(1040, 1213, 1205);
+    /** MySQL client: 2002/2003 can't connect, 2005 unknown host, 2006 gone away, 2013 lost connection. */
+    private static final Set<Integer> MYSQL_CONNECT = Set.of(2002, 2003, 2005, 2006, 2013);
+
+    private SqlErrorClassifier() {}
+
+    /** Классифицирует исключение (обходит цепочку cause, включая CompletionException). */
+    public static Kind classify(Throwable t) {
+        Kind fallback = Kind.UNKNOWN;
+        for (Throwable cur = t; cur != null; cur = cur.getCause() == cur ? null : cur.getCause()) {
+            if (cur instanceof SQLException sql) {
+                Kind k = classifySql(sql);
+                if (k != Kind.UNKNOWN) return k;
+            }
+            if (cur instanceof UnknownHostException || cur instanceof ConnectException
+                    || cur instanceof NoRouteToHostException) {
+                fallback = Kind.CONNECT;
+            } else if (cur instanceof SocketTimeoutException && fallback == Kind.UNKNOWN) {
+                fallback = Kind.TIMEOUT;
+            }
+        }
+        return fallback;
+    }
+
+    private static Kind classifySql(SQLException ex) {
+        int code = ex.getErrorCode();
+        String state = ex.getSQLState() == null ? "" : ex.getSQLState();
+
+        if (MSSQL_AUTH.contains(code) || MYSQL_AUTH.contains(code)) return Kind.AUTH;
+        if (MSSQL_TRANSIENT.contains(code) || MYSQL_TRANSIENT.contains(code)) return Kind.TRANSIENT;
+        if (MSSQL_CONNECT.contains(code) || MYSQL_CONNECT.contains(code)) return Kind.CONNECT;
+
+        if (ex instanceof SQLTimeoutException
+                || state.equals("HYT00") || state.equals("HYT01") || state.equals("HY008")) {
+            return Kind.TIMEOUT;
+        }
+        if (ex instanceof SQLInvalidAuthorizationSpecException || state.startsWith("28")) return Kind.AUTH;
+        if (ex instanceof SQLTransientConnectionException
+                || ex instanceof SQLNonTransientConnectionException
+                || state.startsWith("08")) {
+            return Kind.CONNECT;
+        }
+        if (ex instanceof SQLTransientException || state.equals("40001")) return Kind.TRANSIENT;
+        if (!state.isEmpty()) return Kind.QUERY;
+        return Kind.UNKNOWN;
+    }
+
+    /**
+     * Имеет ли смысл сразу повторить подключение: временная ошибка сервера
+     * или обрыв/сброс соединения (failover multiSubnetFailover-листенера).
+     * Не повторяем: отказ в логине, таймаут логина (он и так долгий),
+     * неизвестный хост.
+     */
+    public static boolean isRetryable(Throwable t) {
+        Kind kind = classify(t);
+        if (kind == Kind.TRANSIENT) return true;
+        if (kind != Kind.CONNECT) return false;
+        for (Throwable cur = t; cur != null; cur = cur.getCause() == cur ? null : cur.getCause()) {
+            if (cur instanceof UnknownHostException) return false;
+            if (cur instanceof SQLException sql && (sql.getErrorCode() == 2005 || sql.getErrorCode() == 11001)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Результат означает недоступность сервера (для availability=0):
+     * ошибка подключения, открытый circuit breaker или обрыв соединения.
+     */
+    public static boolean isAvailabilityFailure(String resultExec) {
+        return resultExec != null
+                && (resultExec.startsWith(CONNECT_ERROR_PREFIX) || resultExec.startsWith(CONNECTION_LOST_PREFIX));
+    }
+}
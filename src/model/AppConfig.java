@@ -1,24 +1,89 @@
 package model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Основные настройки приложения. Содержит информацию об источниках
  * данных, местах сохранения результатов и размере пула потоков.
  */
 public class AppConfig {
 
-    /** RUN | SAVE_CONFIGS | PROCESS_XML_RESULT */
+    /** RUN | DAEMON | SAVE_CONFIGS | PROCESS_XML_RESULT */
     public String taskName = "RUN";
     /** Размер пула потоков для выполнения запросов. */
     public int threadPoolSize = 32;
+    /**
+     * PLATFORM — фиксированный пул из ThreadPoolSize потоков (как раньше);
+     * VIRTUAL  — виртуальные потоки (JDK 21+), ThreadPoolSize тогда задаёт
+     *            максимум одновременно опрашиваемых инстансов (семафор);
+     * ADAPTIVE — пул от MinThreadPoolSize до ThreadPoolSize потоков, размер
+     *            подбирается по задержкам подключений, запросов и записи.
+     */
+    public String executorMode = "PLATFORM";
+    /** ExecutorMode=ADAPTIVE: нижняя граница размера пула (верхняя — ThreadPoolSize). */
+    public int minThreadPoolSize = 4;
+    /** Интервал между циклами опроса в режиме DAEMON, секунд. */
+    public int scheduleIntervalSec = 60;
+    /** Сколько запросов одновременно выполнять на одном инстансе (1 — последовательно). */
+    public int maxQueriesPerInstance = 1;
+    /** MSSQL: отправлять запросы инстанса одним T-SQL батчем (один round trip). */
+    public boolean batchQueries = false;
+    /** Каталог для файлов состояния между запусками (расписание запросов и т.п.). */
+    public String stateDirectory = "state";
+    /** Таймаут запроса по умолчанию, секунд (0 — без таймаута). Атрибут timeoutSec у Query важнее. */
+    public int queryTimeoutSec = 0;
+    /**
+     * Дедлайн цикла опроса, секунд: по истечении выполняющиеся запросы отменяются.
+     * 0 — без дедлайна (в режиме DAEMON тогда дедлайн = ScheduleIntervalSec).
+     */
+    public int runDeadlineSec = 0;
+    /** Размер пула потоков для подключений к инстансам (0 — как ThreadPoolSize). */
+    public int connectThreadPoolSize = 0;
+    /** Максимум новых подключений в секунду (0 — без ограничения). */
+    public int maxConnectsPerSec = 0;
+    /** Сколько раз повторять подключение при временной ошибке. */
+    public int connectRetries = 2;
+    /** Базовая пауза перед повтором подключения, мс (растёт экспоненциально, со случайным разбросом). */
+    public int connectRetryBaseMs = 200;
+    /** Максимум повторов подключения за один цикл на весь коллектор. */
+    public int connectRetryBudget = 100;
+    /** Сколько подряд ошибок подключения открывают circuit breaker инстанса (0 — выключен). */
+    public int breakerFailureThreshold = 3;
+    /** Начальная пауза открытого breaker-а, секунд (дальше удваивается). */
+    public int breakerBaseBackoffSec = 30;
+    /** Максимальная пауза открытого breaker-а, секунд. */
+    public int breakerMaxBackoffSec = 900;
+    /** Сколько простаивающих соединений держать на инстанс (0 — пул выключен). */
+    public int connectionPoolSize = 1;
+    /** Через сколько секунд простоя соединение из пула закрывается. */
+    public int connectionIdleTimeoutSec = 300;
+    /** Максимальное время жизни соединения из пула, секунд. */
+    public int connectionMaxLifetimeSec = 1800;
+    /** Число узлов-коллекторов при шардировании по номерам (0/1 — выключено). */
+    public int shardCount = 0;
+    /** Номер этого узла, 0..ShardCount-1. */
+    public int shardIndex = 0;
+    /** Имена узлов через запятую (вместо ShardCount/ShardIndex). */
+    public String shardNodes = "";
+    /** Имя этого узла из ShardNodes. */
+    public String shardNodeId = "";
     /** Источник списка серверов. */
     public SourceConfig serversSource = new SourceConfig();
     /** Источник списка SQL-заданий. */
     public SourceConfig jobsSource = new SourceConfig();
-    /** Куда сохранять результаты выполнения запросов. */
+    /** Куда сохранять результаты выполнения запросов (первый из ResultsDestination). */
     public DestinationConfig resultsDestination = new DestinationConfig();
+    /** Все ResultsDestination конфига по порядку; пусто — только resultsDestination. */
+    public List<DestinationConfig> resultsDestinations = new ArrayList<>();
     /** Куда писать логи приложения. */
     public DestinationConfig logsDestination = new DestinationConfig();
 
+    /** Получатели результатов: все ResultsDestination или единственный resultsDestination. */
+    public List<DestinationConfig> getResultsDestinations() {
+        return resultsDestinations.isEmpty() ? List.of(resultsDestination) : resultsDestinations;
+    }
+
     // Можно добавить геттеры для имён файлов
     public String getServersFileName() {
         return serversSource.fileName.isEmpty() ? "InstancesConfig.xml" : serversSource.fileName;
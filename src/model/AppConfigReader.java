@@ -5,6 +5,8 @@ import org.w3c.dom.*;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -28,14 +30,45 @@ public class AppConfigReader {
 
         AppConfig cfg = new AppConfig();
 
-        // --- TaskName / ThreadPoolSize ---
+        // --- TaskName / ThreadPoolSize / ScheduleIntervalSec ---
         Element root = doc.getDocumentElement();
-        cfg.taskName       = getText(root, "TaskName");
-        cfg.threadPoolSize = parseIntSafe(getText(root, "ThreadPoolSize"), 8);
+        cfg.taskName            = getText(root, "TaskName");
+        cfg.threadPoolSize      = parseIntSafe(getText(root, "ThreadPoolSize"), 8);
+        cfg.scheduleIntervalSec = parseIntSafe(getText(root, "ScheduleIntervalSec"), 60);
+        cfg.maxQueriesPerInstance = parseIntSafe(getText(root, "MaxQueriesPerInstance"), 1);
+        cfg.batchQueries        = Boolean.parseBoolean(getText(root, "BatchQueries"));
+        String stateDir = getText(root, "StateDirectory");
+        cfg.stateDirectory      = stateDir.isEmpty() ? "state" : stateDir;
+        cfg.queryTimeoutSec     = parseIntSafe(getText(root, "QueryTimeoutSec"), 0);
+        cfg.runDeadlineSec      = parseIntSafe(getText(root, "RunDeadlineSec"), 0);
+        String mode = getText(root, "ExecutorMode");
+        cfg.executorMode        = mode.isEmpty() ? "PLATFORM" : mode;
+        cfg.minThreadPoolSize   = parseIntSafe(getText(root, "MinThreadPoolSize"), 4);
+
+        // --- подключения и пул соединений к опрашиваемым инстансам ---
+        cfg.connectThreadPoolSize    = parseIntSafe(getText(root, "ConnectThreadPoolSize"), 0);
+        cfg.maxConnectsPerSec        = parseIntSafe(getText(root, "MaxConnectsPerSec"), 0);
+        cfg.connectRetries           = parseIntSafe(getText(root, "ConnectRetries"), 2);
+        cfg.connectRetryBaseMs       = parseIntSafe(getText(root, "ConnectRetryBaseMs"), 200);
+        cfg.connectRetryBudget       = parseIntSafe(getText(root, "ConnectRetryBudget"), 100);
+        cfg.breakerFailureThreshold  = parseIntSafe(getText(root, "BreakerFailureThreshold"), 3);
+        cfg.breakerBaseBackoffSec    = parseIntSafe(getText(root, "BreakerBaseBackoffSec"), 30);
+        cfg.breakerMaxBackoffSec     = parseIntSafe(getText(root, "BreakerMaxBackoffSec"), 900);
+        cfg.connectionPoolSize       = parseIntSafe(getText(root, "ConnectionPoolSize"), 1);
+        cfg.connectionIdleTimeoutSec = parseIntSafe(getText(root, "ConnectionIdleTimeoutSec"), 300);
+        cfg.connectionMaxLifetimeSec = parseIntSafe(getText(root, "ConnectionMaxLifetimeSec"), 1800);
+
+        // --- шардирование инстансов между узлами ---
+        cfg.shardCount  = parseIntSafe(getText(root, "ShardCount"), 0);
+        cfg.shardIndex  = parseIntSafe(getText(root, "ShardIndex"), 0);
+        cfg.shardNodes  = getText(root, "ShardNodes");
+        cfg.shardNodeId = getText(root, "ShardNodeId");
 
         cfg.serversSource      = readSource(doc, "ServersSource");
         cfg.jobsSource         = readSource(doc, "JobsSource");
-        cfg.resultsDestination = readDestination(doc, "ResultsDestination");
+        cfg.resultsDestinations = readDestinations(doc, "ResultsDestination");
+        cfg.resultsDestination = cfg.resultsDestinations.isEmpty()
+                ? new DestinationConfig() : cfg.resultsDestinations.get(0);
         cfg.logsDestination    = readDestination(doc, "LogsDestination");
         return cfg;
     }
@@ -66,9 +99,31 @@ public class AppConfigReader {
         return sc;
     }
 
+    /**
+     * Все элементы tag по порядку. У второго и следующих получателей каталоги
+     * spill/outbox по умолчанию свои (spill-2, outbox-2, ...), чтобы отложенные
+     * результаты одного получателя не забрал другой.
+     */
+    private static List<DestinationConfig> readDestinations(Document doc, String tag) {
+        List<DestinationConfig> list = new ArrayList<>();
+        NodeList nodes = doc.getElementsByTagName(tag);
+        for (int i = 0; i < nodes.getLength(); i++) {
+            DestinationConfig dc = readDestination(nodes.item(i));
+            if (i > 0) {
+                if ("spill".equals(dc.spillDirectory))   dc.spillDirectory  = "spill-" + (i + 1);
+                if ("outbox".equals(dc.outboxDirectory)) dc.outboxDirectory = "outbox-" + (i + 1);
+            }
+            list.add(dc);
+        }
+        return list;
+    }
+
     private static DestinationConfig readDestination(Document doc, String tag) {
+        return readDestination(doc.getElementsByTagName(tag).item(0));
+    }
+
+    private static DestinationConfig readDestination(Node n) {
         DestinationConfig dc = new DestinationConfig();
-        Node n = doc.getElementsByTagName(tag).item(0);
         if (n instanceof Element el) {
             dc.type = getText(el, "Type");
 
@@ -89,6 +144,31 @@ public class AppConfigReader {
 
             // NEW: формат сериализации результата (XML|JSON). Пустое → разрулится в ResponseProcessor.
             dc.resultFormat          = getText(el, "ResultFormat");
+            dc.maxConcurrentWrites   = parseIntSafe(getText(el, "MaxConcurrentWrites"), 0);
+            dc.sinkQueueSize         = parseIntSafe(getText(el, "SinkQueueSize"), 0);
+            dc.sinkThreads           = parseIntSafe(getText(el, "SinkThreads"), 4);
+            String overflow          = getText(el, "SinkOverflow");
+            dc.sinkOverflow          = overflow.isEmpty() ? "BLOCK" : overflow;
+            String spillDir          = getText(el, "SpillDirectory");
+            dc.spillDirectory        = spillDir.isEmpty() ? "spill" : spillDir;
+            dc.writeBatchSize        = parseIntSafe(getText(el, "WriteBatchSize"), 1);
+            dc.writeBatchFlushMs     = parseIntSafe(getText(el, "WriteBatchFlushMs"), 1000);
+            dc.writeTvpType          = getText(el, "WriteTvpType");
+            dc.streamBody            = Boolean.parseBoolean(getText(el, "StreamBody"));
+            dc.bodyChunkSize         = parseIntSafe(getText(el, "BodyChunkSize"), 0);
+            dc.resultCompression     = getText(el, "ResultCompression");
+            String fileMode          = getText(el, "LocalFileMode");
+            dc.localFileMode         = fileMode.isEmpty() ? "FILES" : fileMode;
+            dc.segmentCount          = parseIntSafe(getText(el, "SegmentCount"), 4);
+            dc.segmentMaxMb          = parseIntSafe(getText(el, "SegmentMaxMb"), 256);
+            dc.outboxMaxMb           = parseIntSafe(getText(el, "OutboxMaxMb"), 0);
+            String outboxDir         = getText(el, "OutboxDirectory");
+            dc.outboxDirectory       = outboxDir.isEmpty() ? "outbox" : outboxDir;
+            dc.outboxReplayPerSec    = parseIntSafe(getText(el, "OutboxReplayPerSec"), 20);
+            dc.requestIds            = getText(el, "RequestIds");
+            String bulkTable         = getText(el, "BulkTable");
+            dc.bulkTable             = bulkTable.isEmpty() ? "dbo.collector_{reqId}" : bulkTable;
+            dc.bulkAutoCreate        = Boolean.parseBoolean(getText(el, "BulkAutoCreate"));
         }
         return dc;
     }
@@ -102,7 +182,7 @@ public class AppConfigReader {
         if (type == null) return true;
         String n = type.trim().toUpperCase(Locale.ROOT);
         if (n.isEmpty()) return true;
-        return n.equals("MSSQL") || n.equals("SQLSERVER");
+        return n.equals("MSSQL") || n.equals("SQLSERVER") || n.equals("MSSQL_BULK");
     }
 
     // ──────────────────────────────────────────────────────────────
@@ -32,6 +32,29 @@ public final class AppConfigWriter {
         // Главные поля
         add(doc, root, "TaskName",        cfg.taskName);
         add(doc, root, "ThreadPoolSize",  String.valueOf(cfg.threadPoolSize));
+        add(doc, root, "ScheduleIntervalSec", String.valueOf(cfg.scheduleIntervalSec));
+        add(doc, root, "StateDirectory",           cfg.stateDirectory);
+        add(doc, root, "QueryTimeoutSec",          String.valueOf(cfg.queryTimeoutSec));
+        add(doc, root, "RunDeadlineSec",           String.valueOf(cfg.runDeadlineSec));
+        add(doc, root, "ExecutorMode",             cfg.executorMode);
+        add(doc, root, "MinThreadPoolSize",        String.valueOf(cfg.minThreadPoolSize));
+        add(doc, root, "MaxQueriesPerInstance",    String.valueOf(cfg.maxQueriesPerInstance));
+        add(doc, root, "BatchQueries",             String.valueOf(cfg.batchQueries));
+        add(doc, root, "ConnectThreadPoolSize",    String.valueOf(cfg.connectThreadPoolSize));
+        add(doc, root, "MaxConnectsPerSec",        String.valueOf(cfg.maxConnectsPerSec));
+        add(doc, root, "ConnectRetries",           String.valueOf(cfg.connectRetries));
+        add(doc, root, "ConnectRetryBaseMs",       String.valueOf(cfg.connectRetryBaseMs));
+        add(doc, root, "ConnectRetryBudget",       String.valueOf(cfg.connectRetryBudget));
+        add(doc, root, "BreakerFailureThreshold",  String.valueOf(cfg.breakerFailureThreshold));
+        add(doc, root, "BreakerBaseBackoffSec",    String.valueOf(cfg.breakerBaseBackoffSec));
+        add(doc, root, "BreakerMaxBackoffSec",     String.valueOf(cfg.breakerMaxBackoffSec));
+        add(doc, root, "ConnectionPoolSize",       String.valueOf(cfg.connectionPoolSize));
+        add(doc, root, "ConnectionIdleTimeoutSec", String.valueOf(cfg.connectionIdleTimeoutSec));
+        add(doc, root, "ConnectionMaxLifetimeSec", String.valueOf(cfg.connectionMaxLifetimeSec));
+        add(doc, root, "ShardCount",               String.valueOf(cfg.shardCount));
+        add(doc, root, "ShardIndex",               String.valueOf(cfg.shardIndex));
+        add(doc, root, "ShardNodes",               cfg.shardNodes);
+        add(doc, root, "ShardNodeId",              cfg.shardNodeId);
 
         // Комментарий-подсказка
         root.appendChild(doc.createComment(
@@ -45,8 +68,10 @@ public final class AppConfigWriter {
         root.appendChild(doc.createComment(" Source of jobs list "));
         root.appendChild(writeSource(doc, "JobsSource", cfg.jobsSource));
 
-        root.appendChild(doc.createComment(" Destination for results "));
-        root.appendChild(writeDest(doc, "ResultsDestination", cfg.resultsDestination));
+        root.appendChild(doc.createComment(" Destination(s) for results "));
+        for (DestinationConfig dc : cfg.getResultsDestinations()) {
+            root.appendChild(writeDest(doc, "ResultsDestination", dc));
+        }
 
         root.appendChild(doc.createComment(" Destination for application logs "));
         root.appendChild(writeDest(doc, "LogsDestination", cfg.logsDestination));
@@ -87,6 +112,48 @@ public final class AppConfigWriter {
         if (dc.resultFormat != null && !dc.resultFormat.isBlank()) {
             add(d, el, "ResultFormat", dc.resultFormat);
         }
+        if (dc.maxConcurrentWrites > 0) {
+            add(d, el, "MaxConcurrentWrites", String.valueOf(dc.maxConcurrentWrites));
+        }
+        if (dc.sinkQueueSize > 0) {
+            add(d, el, "SinkQueueSize",  String.valueOf(dc.sinkQueueSize));
+            add(d, el, "SinkThreads",    String.valueOf(dc.sinkThreads));
+            add(d, el, "SinkOverflow",   dc.sinkOverflow);
+            add(d, el, "SpillDirectory", dc.spillDirectory);
+        }
+        if (dc.writeBatchSize > 1) {
+            add(d, el, "WriteBatchSize",    String.valueOf(dc.writeBatchSize));
+            add(d, el, "WriteBatchFlushMs", String.valueOf(dc.writeBatchFlushMs));
+        }
+        if (dc.writeTvpType != null && !dc.writeTvpType.isBlank()) {
+            add(d, el, "WriteTvpType", dc.writeTvpType);
+        }
+        if (dc.resultCompression != null && !dc.resultCompression.isBlank()) {
+            add(d, el, "ResultCompression", dc.resultCompression);
+        }
+        if ("SEGMENTS".equalsIgnoreCase(blank(dc.localFileMode, "").trim())) {
+            add(d, el, "LocalFileMode", dc.localFileMode);
+            add(d, el, "SegmentCount",  String.valueOf(dc.segmentCount));
+            add(d, el, "SegmentMaxMb",  String.valueOf(dc.segmentMaxMb));
+        }
+        if (dc.outboxMaxMb > 0) {
+            add(d, el, "OutboxMaxMb",        String.valueOf(dc.outboxMaxMb));
+            add(d, el, "OutboxDirectory",    dc.outboxDirectory);
+            add(d, el, "OutboxReplayPerSec", String.valueOf(dc.outboxReplayPerSec));
+        }
+        if (dc.requestIds != null && !dc.requestIds.isBlank()) {
+            add(d, el, "RequestIds", dc.requestIds);
+        }
+        if (dc.streamBody) {
+            add(d, el, "StreamBody", "true");
+        }
+        if (dc.bodyChunkSize > 0) {
+            add(d, el, "BodyChunkSize", String.valueOf(dc.bodyChunkSize));
+        }
+        if ("MSSQL_BULK".equalsIgnoreCase(blank(dc.type, "").trim())) {
+            add(d, el, "BulkTable",      dc.bulkTable);
+            add(d, el, "BulkAutoCreate", String.valueOf(dc.bulkAutoCreate));
+        }
         return el;
     }
 
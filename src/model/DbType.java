@@ -25,6 +25,16 @@ public enum DbType {
         };
     }
 
+    /** Строгий парсинг (с теми же алиасами): неизвестное или пустое значение — null. */
+    public static DbType parseKnown(String s) {
+        if (s == null) return null;
+        return switch (s.trim().toUpperCase(Locale.ROOT)) {
+            case "OCEANBASE", "OB", "MYSQL" -> OCEANBASE;
+            case "MSSQL", "SQLSERVER"       -> MSSQL;
+            default                         -> null;
+        };
+    }
+
     /** Имя JDBC-драйвера по умолчанию для каждого типа. */
     public String driverClass() {
         return switch (this) {
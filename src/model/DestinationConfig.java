@@ -6,7 +6,7 @@ package model;
  * получателей: MSSQL, OCEANBASE (OB), MongoDB, локальные файлы, консоль или PROMETHEUS.
  */
 public class DestinationConfig {
-    /** Тип назначения: MSSQL | OCEANBASE | MONGO | LOCALFILE | CONSOLE | PROMETHEUS */
+    /** Тип назначения: MSSQL | MSSQL_BULK | OCEANBASE | MONGO | LOCALFILE | CONSOLE | PROMETHEUS */
     public String type;
 
     // Общая JDBC-конфигурация (используется для MSSQL и OCEANBASE).
@@ -34,4 +34,88 @@ public class DestinationConfig {
      *   - всё остальное → XML (обратная совместимость).
      */
     public String resultFormat;
+
+    /**
+     * Максимум одновременных записей в этот получатель (0 — без ограничения).
+     * Особенно полезно при ExecutorMode=VIRTUAL, где число потоков не ограничено.
+     */
+    public int maxConcurrentWrites;
+
+    /**
+     * Размер очереди асинхронной доставки результатов (0 — запись прямо
+     * в потоке опроса, как раньше).
+     */
+    public int sinkQueueSize;
+    /** Сколько потоков доставляют результаты из очереди. */
+    public int sinkThreads = 4;
+    /** Что делать при полной очереди: BLOCK | DROP_OLDEST | SPILL. */
+    public String sinkOverflow = "BLOCK";
+    /** Каталог для SinkOverflow=SPILL. */
+    public String spillDirectory = "spill";
+
+    /**
+     * Сколько результатов MSSQL/OCEANBASE-получатель пишет одной пачкой
+     * (1 — каждый результат сразу, как раньше).
+     */
+    public int writeBatchSize = 1;
+    /** Неполная пачка записывается не позже чем через столько мс. */
+    public int writeBatchFlushMs = 1000;
+    /**
+     * Имя табличного типа MSSQL (например, dbo.CollectorResultList): пачка уходит
+     * в хранимую процедуру из MSSQLQuery одним table-valued параметром.
+     * Пусто — процедура вызывается для каждого результата (executeBatch).
+     */
+    public String writeTvpType;
+
+    /**
+     * MSSQL_BULK: таблица для строк результата, {reqId} заменяется на id запроса
+     * (например, dbo.collector_{reqId} → dbo.collector_PERF).
+     */
+    public String bulkTable = "dbo.collector_{reqId}";
+    /** MSSQL_BULK: создавать таблицу по метаданным результата, если её нет. */
+    public boolean bulkAutoCreate;
+
+    /**
+     * MSSQL/OCEANBASE: тело результата не собирается в строку, а передаётся
+     * потоком (setCharacterStream) прямо из форматтера.
+     */
+    public boolean streamBody;
+    /**
+     * Передавать тело кусками по столько символов (0 — одним параметром).
+     * Процедура/запрос получает (ci, reqId, chunk, resultExec, seq, isLast).
+     */
+    public int bodyChunkSize;
+
+    /**
+     * Сжатие тела результата: пусто/NONE — без сжатия, GZIP — для MSSQL/OCEANBASE
+     * тело уходит как varbinary (совместимо с DECOMPRESS() в SQL Server),
+     * для LOCALFILE пишутся файлы .xml.gz / .json.gz.
+     */
+    public String resultCompression;
+
+    /**
+     * LOCALFILE: FILES — файл на каждый (ci, reqId), как раньше;
+     * SEGMENTS — записи дописываются в несколько сегментных файлов с индексом.
+     */
+    public String localFileMode = "FILES";
+    /** SEGMENTS: сколько сегментов пишутся параллельно. */
+    public int segmentCount = 4;
+    /** SEGMENTS: после какого размера (МБ) сегмент закрывается и начинается новый. */
+    public int segmentMaxMb = 256;
+
+    /**
+     * Предел (МБ) outbox-а на диске для результатов, которые не удалось доставить
+     * из-за недоступности получателя (0 — outbox выключен, ошибка только в логе).
+     */
+    public int outboxMaxMb;
+    /** Каталог outbox-а. */
+    public String outboxDirectory = "outbox";
+    /** Сколько отложенных результатов в секунду доставлять после восстановления получателя. */
+    public int outboxReplayPerSec = 20;
+
+    /**
+     * Какие запросы пишет этот получатель, когда их несколько: id через запятую,
+     * {@code *} в конце — любой хвост (PERF,WAIT_*). Пусто — все.
+     */
+    public String requestIds;
 }
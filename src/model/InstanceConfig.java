@@ -1,17 +1,22 @@
 package model;
 
+import java.io.Serializable;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Конфигурация подключения к одному инстансу СУБД. Поля заполняются при
  * чтении XML/БД и используются {@link db.ServerRequest} для подключения.
+ * Serializable — результат вместе с инстансом может быть сброшен на диск
+ * асинхронной стадией доставки (SinkOverflow=SPILL).
  *
  * Поддерживаются:
  *  - MSSQL — драйвер mssql-jdbc;
  *  - OCEANBASE — драйвер mysql-connector-j (OB в MySQL-режиме).
  */
-public class InstanceConfig {
+public class InstanceConfig implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     /** идентификатор сервера */
     public String ci;
     /** имя инстанса (DNS-имя или host\instance, либо просто host для OB-прокси) */
@@ -20,8 +25,8 @@ public class InstanceConfig {
     public Integer port;     // null → динамический / Browser
     /** учётная запись */
     public String userName;
-    /** пароль учётной записи */
-    public String password;
+    /** пароль учётной записи (transient — не попадает в spill-файлы) */
+    public transient String password;
 
     /**
      * Тип СУБД. По умолчанию MSSQL — чтобы существующие конфиги
@@ -42,6 +47,20 @@ public class InstanceConfig {
      */
     public String cluster;
 
+    /**
+     * Сколько запросов одновременно можно выполнять на этом инстансе
+     * (каждый — на своём соединении). null — берётся глобальный
+     * {@code MaxQueriesPerInstance} из AppConfig.
+     */
+    public Integer maxQueriesPerInstance;
+
+    /**
+     * Версия сервера (например, 15.0.2000 или 4.2.1) — для выбора запросов
+     * по {@code minVersion}. Берётся из тега {@code <Version>} или лейбла
+     * {@code version}; null — неизвестна.
+     */
+    public String version;
+
     /**
      * Произвольные дополнительные «лейблы» (теги) инстанса:
      * пара "имя → значение". Используются для меток при отправке метрик.
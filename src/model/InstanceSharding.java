@@ -0,0 +1,94 @@
+package model;
+
+import logging.LogService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Шардирование списка инстансов между несколькими копиями коллектора.
+ *
+ * Узел опрашивает только те инстансы, для которых он «победитель»
+ * rendezvous-хэширования (HRW) по {@code InstanceConfig.ci}: у каждого CI
+ * считается хэш пары (узел, CI), инстанс достаётся узлу с максимальным хэшем.
+ * При добавлении узла переезжает только ~1/N инстансов, остальные
+ * остаются на своих узлах.
+ *
+ * Узлы задаются одним из способов:
+ *  - {@code ShardCount} + {@code ShardIndex} — узлы с номерами 0..N-1;
+ *  - {@code ShardNodes} (через запятую) + {@code ShardNodeId} — именованные узлы.
+ * Ничего не задано (или один узел) — шардирование выключено.
+ */
+public final class InstanceSharding {
+
+    private InstanceSharding() {}
+
+    /** Оставляет из списка только инстансы этого узла. */
+    public static List<InstanceConfig> apply(List<InstanceConfig> all, AppConfig cfg) {
+        List<String> nodes = nodes(cfg);
+        if (nodes.size() < 2) return all;
+
+        String self = selfId(cfg);
+        if (!nodes.contains(self)) {
+            LogService.errorf("[SHARD] node '%s' is not in shard list %s – polling nothing%n", self, nodes);
+            return List.of();
+        }
+
+        List<InstanceConfig> mine = new ArrayList<>();
+        for (InstanceConfig ic : all) {
+            if (self.equals(owner(ic.ci, nodes))) mine.add(ic);
+        }
+        LogService.printf("[SHARD] node %s (%d nodes): %d of %d instances%n",
+                self, nodes.size(), mine.size(), all.size());
+        return mine;
+    }
+
+    /** Узел-владелец CI: максимальный вес среди узлов. */
+    public static String owner(String ci, List<String> nodes) {
+        String best = null;
+        long bestWeight = 0;
+        for (String node : nodes) {
+            long w = weight(node, ci == null ? "" : ci);
+            if (best == null || Long.compareUnsigned(w, bestWeight) > 0) {
+                best = node;
+                bestWeight = w;
+            }
+        }
+        return best;
+    }
+
+    private static List<String> nodes(AppConfig cfg) {
+        List<String> nodes = new ArrayList<>();
+        if (cfg.shardNodes != null && !cfg.shardNodes.isBlank()) {
+            for (String n : cfg.shardNodes.split(",")) {
+                if (!n.isBlank() && !nodes.contains(n.trim())) nodes.add(n.trim());
+            }
+        } else {
+            for (int i = 0; i < cfg.shardCount; i++) nodes.add(String.valueOf(i));
+        }
+        return nodes;
+    }
+
+    private static String selfId(AppConfig cfg) {
+        if (cfg.shardNodes != null && !cfg.shardNodes.isBlank()) {
+            return cfg.shardNodeId == null ? "" : cfg.shardNodeId.trim();
+        }
+        return String.valueOf(cfg.shardIndex);
+    }
+
+    /** FNV-1a 64 по "node\0ci" + финальное перемешивание (murmur3 fmix64). */
+    private static long weight(String node, String ci) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : (node + '\0' + ci).getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
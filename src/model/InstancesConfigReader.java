@@ -20,8 +20,10 @@ import org.w3c.dom.*;
  *  - dbType   / db_type  → InstanceConfig.dbType
  *  - tenant              → InstanceConfig.tenant
  *  - cluster             → InstanceConfig.cluster
+ *  - maxQueriesPerInstance / max_queries → InstanceConfig.maxQueriesPerInstance
  *
  * Все остальные не-стандартные непустые столбцы автоматически сохраняются в extraLabels.
+ * Колонка {@code version} (она же лейбл) дополнительно задаёт InstanceConfig.version.
  *
  * При чтении из локального XML поддерживается блок:
  *
@@ -30,6 +32,8 @@ import org.w3c.dom.*;
  *    <DbType>OCEANBASE</DbType>
  *    <Tenant>business_tenant</Tenant>
  *    <Cluster>obcluster</Cluster>
+ *    <MaxQueriesPerInstance>4</MaxQueriesPerInstance>
+ *    <Version>15.0</Version>
  *    <ExtraLabels>
  *       <Label key="env">prod</Label>
  *       <Label key="dc">MSK-1</Label>
@@ -41,9 +45,15 @@ public final class InstancesConfigReader {
     private InstancesConfigReader() {}
 
     /**
-     * Главная точка: читает конфиг источника и возвращает список инстансов.
+     * Главная точка: читает конфиг источника и возвращает список инстансов
+     * (при шардировании — только инстансы этого узла, см. {@link InstanceSharding}).
      */
     public static List<InstanceConfig> readConfig(AppConfig cfg) throws Exception {
+        return InstanceSharding.apply(readAll(cfg), cfg);
+    }
+
+    /** Все инстансы источника, без шардирования (SAVE_CONFIGS сохраняет весь парк). */
+    public static List<InstanceConfig> readAll(AppConfig cfg) throws Exception {
         SourceConfig sc = cfg.serversSource;
         if (sc == null || sc.type == null) {
             LogService.errorln("InstancesConfigReader: serversSource not configured.");
@@ -123,6 +133,8 @@ public final class InstancesConfigReader {
 
                 ic.tenant  = nullIfBlank(pickStr(rs, md, "tenant",  "Tenant",  "ob_tenant"));
                 ic.cluster = nullIfBlank(pickStr(rs, md, "cluster", "Cluster", "ob_cluster"));
+                ic.maxQueriesPerInstance = parseIntOrNull(
+                        pickStr(rs, md, "maxQueriesPerInstance", "max_queries"));
 
                 // ---- дополнительные лейблы (всё нестандартное → extraLabels) ----
                 Set<String> std = Set.of(
@@ -130,7 +142,8 @@ public final class InstancesConfigReader {
                         "port", "username", "user", "login", "password", "pwd",
                         "dbtype", "db_type",
                         "tenant", "ob_tenant",
-                        "cluster", "ob_cluster"
+                        "cluster", "ob_cluster",
+                        "maxqueriesperinstance", "max_queries"
                 );
                 for (int i = 1; i <= colCount; i++) {
                     String col = md.getColumnLabel(i);
@@ -149,6 +162,8 @@ public final class InstancesConfigReader {
                     ic.extraLabels.put(col, val);
                 }
 
+                ic.version = versionLabel(ic);
+
                 // лёгкая валидация
                 if (ic.ci == null || ic.ci.isBlank() || ic.instanceName == null || ic.instanceName.isBlank()) {
                     LogService.errorf("InstancesConfigReader(%s): row skipped (ci/instanceName is empty).%n", srcDbType);
@@ -202,6 +217,7 @@ public final class InstancesConfigReader {
             ic.dbType  = (dbTypeStr.isEmpty()) ? DbType.MSSQL : DbType.parse(dbTypeStr);
             ic.tenant  = nullIfBlank(text(el, "Tenant"));
             ic.cluster = nullIfBlank(text(el, "Cluster"));
+            ic.maxQueriesPerInstance = parseIntOrNull(text(el, "MaxQueriesPerInstance"));
 
             // ExtraLabels (необязательно)
             NodeList labelsBlocks = el.getElementsByTagName("ExtraLabels");
@@ -220,6 +236,9 @@ public final class InstancesConfigReader {
                 }
             }
 
+            String version = nullIfBlank(text(el, "Version"));
+            ic.version = version != null ? version : versionLabel(ic);
+
             if (ic.ci == null || ic.ci.isBlank() || ic.instanceName == null || ic.instanceName.isBlank()) {
                 LogService.errorln("InstancesConfigReader(LocalFile): <Instance> skipped (ci/instanceName empty).");
                 continue;
@@ -241,10 +260,23 @@ public final class InstancesConfigReader {
         return s == null ? "" : s.trim();
     }
 
+    /** Значение лейбла version (без учёта регистра имени) либо null. */
+    private static String versionLabel(InstanceConfig ic) {
+        for (Map.Entry<String, String> e : ic.extraLabels.entrySet()) {
+            if (e.getKey().equalsIgnoreCase("version")) return nullIfBlank(e.getValue());
+        }
+        return null;
+    }
+
     private static String nullIfBlank(String s) {
         return (s == null || s.isBlank()) ? null : s.trim();
     }
 
+    private static Integer parseIntOrNull(String s) {
+        if (s == null || s.isBlank()) return null;
+        try { return Integer.parseInt(s.trim()); } catch (NumberFormatException e) { return null; }
+    }
+
     private static String pickStr(ResultSet rs, ResultSetMetaData md, String... names) throws SQLException {
         Map<String, Integer> byName = new HashMap<>();
         int cols = md.getColumnCount();
@@ -37,6 +37,9 @@ public final class InstancesConfigWriter {
             add(doc, inst, "DbType", t.name());
             if (c.tenant != null && !c.tenant.isBlank())  add(doc, inst, "Tenant",  c.tenant);
             if (c.cluster != null && !c.cluster.isBlank()) add(doc, inst, "Cluster", c.cluster);
+            if (c.maxQueriesPerInstance != null)
+                add(doc, inst, "MaxQueriesPerInstance", c.maxQueriesPerInstance.toString());
+            if (c.version != null && !c.version.isBlank()) add(doc, inst, "Version", c.version);
 
             // ExtraLabels (необязательно)
             if (c.extraLabels != null && !c.extraLabels.isEmpty()) {
@@ -1,7 +1,66 @@
 package model;
 
+import java.util.regex.Pattern;
+
 /**
  * Описание одного SQL-запроса из конфигурационного файла.
  * {@code requestId} используется в имени выходного файла.
+ *
+ * {@code timeoutSec}  — таймаут выполнения (Statement.setQueryTimeout);
+ *                       null или 0 — без таймаута.
+ * {@code intervalSec} — как часто выполнять запрос на каждом инстансе;
+ *                       null или 0 — в каждом цикле.
+ * {@code resultSets}  — сколько result set-ов возвращает запрос (например,
+ *                       хранимая процедура); первый идёт под {@code requestId},
+ *                       следующие — под {@code requestId_2}, {@code requestId_3}, ...
+ * {@code batch}       — false — никогда не объединять запрос в общий батч
+ *                       (BatchQueries); null — по умолчанию можно.
+ * {@code selector}    — на каких инстансах выполнять запрос (тип СУБД, версия,
+ *                       лейблы); null — на всех.
+ * {@code writeOnChange}   — true — не записывать результат, если он не
+ *                           изменился с прошлого раза (по хэшу содержимого);
+ * {@code heartbeatCycles} — при writeOnChange всё равно записывать не реже
+ *                           чем раз в столько выполнений; null или 0 — только при изменении.
+ * {@code deltaKey}        — ключевые колонки через запятую: писать только
+ *                           добавленные/изменённые/удалённые строки (см. ResultDelta).
  */
-public record QueryRequest(String requestId, String queryText) { }
+public record QueryRequest(String requestId, String queryText, Integer timeoutSec, Integer intervalSec,
+                           Integer resultSets, Boolean batch, QuerySelector selector,
+                           Boolean writeOnChange, Integer heartbeatCycles, String deltaKey) {
+
+    /** Разделитель батчей SSMS — такой текст нельзя склеивать с другими запросами. */
+    private static final Pattern GO_LINE = Pattern.compile("(?im)^\\s*GO\\s*$");
+
+    public QueryRequest(String requestId, String queryText) {
+        this(requestId, queryText, null, null, null, null, null, null, null, null);
+    }
+
+    /** true — у запроса собственный интервал, и он выполняется не в каждом цикле. */
+    public boolean hasInterval() {
+        return intervalSec != null && intervalSec > 0;
+    }
+
+    public int expectedResultSets() {
+        return resultSets == null || resultSets < 1 ? 1 : resultSets;
+    }
+
+    /** Идентификатор k-го (с нуля) result set-а этого запроса. */
+    public String resultSetId(int k) {
+        return k == 0 ? requestId : requestId + "_" + (k + 1);
+    }
+
+    /** Включён ли режим записи только при изменении результата. */
+    public boolean isWriteOnChange() {
+        return Boolean.TRUE.equals(writeOnChange);
+    }
+
+    /** Подходит ли запрос инстансу (без селектора — подходит любому). */
+    public boolean appliesTo(InstanceConfig ic) {
+        return selector == null || selector.matches(ic);
+    }
+
+    /** Можно ли отправить запрос в составе общего T-SQL батча. */
+    public boolean isBatchable() {
+        return !Boolean.FALSE.equals(batch) && queryText != null && !GO_LINE.matcher(queryText).find();
+    }
+}
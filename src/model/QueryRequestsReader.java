@@ -5,8 +5,10 @@ import javax.xml.parsers.*;
 import java.io.File;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import logging.LogService;
 
@@ -19,7 +21,17 @@ import logging.LogService;
  *   - LOCALFILE  (XML)
  *   - MONGO      (заглушка)
  *
- * Для JDBC-источников SELECT должен вернуть поля {@code requestId} и {@code queryText}.
+ * Для JDBC-источников SELECT должен вернуть поля {@code requestId} и {@code queryText};
+ * опционально — {@code timeoutSec}, {@code intervalSec}, {@code resultSets}, {@code batch},
+ * {@code dbType}, {@code minVersion}, {@code labels} (см. {@link QuerySelector}),
+ * {@code writeOnChange}, {@code heartbeatCycles}, {@code deltaKey}.
+ *
+ * В XML те же параметры задаются атрибутами:
+ * {@code <Query id="PERF" timeoutSec="30" intervalSec="15" resultSets="2" batch="false"
+ *        dbType="MSSQL" minVersion="13" labels="env=prod" writeOnChange="true" heartbeatCycles="12">}.
+ * Если у запроса таймаут не задан, при выполнении берётся {@code QueryTimeoutSec}
+ * из AppConfig (в сам запрос не подставляется — иначе SAVE_CONFIGS записал бы
+ * его как собственный таймаут запроса).
  */
 public class QueryRequestsReader {
 
@@ -27,12 +39,15 @@ public class QueryRequestsReader {
         String type = appConfig.jobsSource.type == null
                 ? ""
                 : appConfig.jobsSource.type.trim().toUpperCase(Locale.ROOT);
+        List<QueryRequest> list;
         switch (type) {
             case "MSSQL":
-                return readFromJdbc(appConfig.jobsSource, DbType.MSSQL);
+                list = readFromJdbc(appConfig.jobsSource, DbType.MSSQL);
+                break;
             case "OCEANBASE":
             case "OB":
-                return readFromJdbc(appConfig.jobsSource, DbType.OCEANBASE);
+                list = readFromJdbc(appConfig.jobsSource, DbType.OCEANBASE);
+                break;
             case "MONGO":
                 LogService.println("[WARN] MongoDB jobs source is not implemented yet!");
                 return new ArrayList<>();
@@ -41,8 +56,9 @@ public class QueryRequestsReader {
                 String file = appConfig.jobsSource.fileName == null || appConfig.jobsSource.fileName.isEmpty()
                         ? "QueryRequests.xml"
                         : appConfig.jobsSource.fileName;
-                return readFromLocalFile(file);
+                list = readFromLocalFile(file);
         }
+        return list;
     }
 
     /** Читает из JDBC-источника (MSSQL/OCEANBASE). SELECT должен вернуть колонки requestId, queryText. */
@@ -60,10 +76,21 @@ public class QueryRequestsReader {
         try (Connection con = DriverManager.getConnection(cfg.mssqlConnectionString);
              Statement st = con.createStatement();
              ResultSet rs = st.executeQuery(cfg.mssqlQuery)) {
+            Set<String> cols = columnLabels(rs.getMetaData());
             while (rs.next()) {
                 String id   = rs.getString("requestId");
                 String text = rs.getString("queryText");
-                list.add(new QueryRequest(id, text));
+                Integer timeout  = optInt(rs, cols, "timeoutSec");
+                Integer interval = optInt(rs, cols, "intervalSec");
+                Integer rsCount  = optInt(rs, cols, "resultSets");
+                Boolean batch    = parseBoolOrNull(optStr(rs, cols, "batch"));
+                QuerySelector selector = QuerySelector.of(optStr(rs, cols, "dbType"),
+                        optStr(rs, cols, "minVersion"), optStr(rs, cols, "labels"));
+                Boolean onChange  = parseBoolOrNull(optStr(rs, cols, "writeOnChange"));
+                Integer heartbeat = optInt(rs, cols, "heartbeatCycles");
+                String deltaKey   = optStr(rs, cols, "deltaKey");
+                list.add(new QueryRequest(id, text, timeout, interval, rsCount, batch, selector,
+                        onChange, heartbeat, deltaKey));
             }
         }
         LogService.printf("QueryRequestsReader: loaded %d queries from %s%n", list.size(), dbType);
@@ -87,10 +114,48 @@ public class QueryRequestsReader {
             Element el = (Element) nodes.item(i);
             String id = el.getAttribute("id");
             String text = el.getTextContent().trim();
-            list.add(new QueryRequest(id, text));
+            Integer timeout  = parseIntOrNull(el.getAttribute("timeoutSec"));
+            Integer interval = parseIntOrNull(el.getAttribute("intervalSec"));
+            Integer rsCount  = parseIntOrNull(el.getAttribute("resultSets"));
+            Boolean batch    = parseBoolOrNull(el.getAttribute("batch"));
+            QuerySelector selector = QuerySelector.of(el.getAttribute("dbType"),
+                    el.getAttribute("minVersion"), el.getAttribute("labels"));
+            Boolean onChange  = parseBoolOrNull(el.getAttribute("writeOnChange"));
+            Integer heartbeat = parseIntOrNull(el.getAttribute("heartbeatCycles"));
+            String deltaKey   = el.getAttribute("deltaKey");
+            list.add(new QueryRequest(id, text, timeout, interval, rsCount, batch, selector,
+                    onChange, heartbeat, deltaKey.isBlank() ? null : deltaKey.trim()));
         }
         LogService.printf("QueryRequestsReader: loaded %d queries from local file '%s'%n",
                 list.size(), file.getAbsolutePath());
         return list;
     }
+
+    /** Имена колонок результата в нижнем регистре — для опциональных полей. */
+    private static Set<String> columnLabels(ResultSetMetaData md) throws SQLException {
+        Set<String> cols = new HashSet<>();
+        for (int i = 1; i <= md.getColumnCount(); i++) {
+            cols.add(md.getColumnLabel(i).toLowerCase(Locale.ROOT));
+        }
+        return cols;
+    }
+
+    private static Integer optInt(ResultSet rs, Set<String> cols, String name) throws SQLException {
+        return parseIntOrNull(optStr(rs, cols, name));
+    }
+
+    private static String optStr(ResultSet rs, Set<String> cols, String name) throws SQLException {
+        return cols.contains(name.toLowerCase(Locale.ROOT)) ? rs.getString(name) : null;
+    }
+
+    private static Boolean parseBoolOrNull(String s) {
+        if (s == null || s.isBlank()) return null;
+        String n = s.trim().toLowerCase(Locale.ROOT);
+        return n.equals("1") || n.equals("true") || n.equals("yes");
+    }
+
+    private static Integer parseIntOrNull(String s) {
+        if (s == null || s.isBlank()) return null;
+        try { return Integer.parseInt(s.trim()); } catch (NumberFormatException e) { return null; }
+    }
 }
@@ -23,6 +23,19 @@ public final class QueryRequestsWriter {
         for (QueryRequest qr : list) {
             Element q = doc.createElement("Query");
             q.setAttribute("id", qr.requestId());
+            if (qr.timeoutSec() != null) q.setAttribute("timeoutSec", qr.timeoutSec().toString());
+            if (qr.intervalSec() != null) q.setAttribute("intervalSec", qr.intervalSec().toString());
+            if (qr.resultSets() != null)  q.setAttribute("resultSets", qr.resultSets().toString());
+            if (qr.batch() != null)       q.setAttribute("batch", qr.batch().toString());
+            if (qr.writeOnChange() != null)   q.setAttribute("writeOnChange", qr.writeOnChange().toString());
+            if (qr.heartbeatCycles() != null) q.setAttribute("heartbeatCycles", qr.heartbeatCycles().toString());
+            if (qr.deltaKey() != null)        q.setAttribute("deltaKey", qr.deltaKey());
+            QuerySelector sel = qr.selector();
+            if (sel != null) {
+                if (sel.dbTypes() != null)    q.setAttribute("dbType", sel.dbTypes());
+                if (sel.minVersion() != null) q.setAttribute("minVersion", sel.minVersion());
+                if (sel.labels() != null)     q.setAttribute("labels", sel.labels());
+            }
             q.setTextContent(qr.queryText());
             root.appendChild(q);
         }
@@ -0,0 +1,177 @@
+package model;
+
+import logging.LogService;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * На каких инстансах выполнять запрос. Задаётся атрибутами {@code <Query>}
+ * (или одноимёнными колонками JDBC-источника заданий):
+ *
+ *  - {@code dbType="MSSQL"} или {@code dbType="MSSQL,OCEANBASE"} — типы СУБД;
+ *  - {@code minVersion="13"} — минимальная версия сервера
+ *    ({@link InstanceConfig#version}, сравнение по числовым частям: 13 &lt; 13.0.5 &lt; 15);
+ *  - {@code labels="env=prod,dc!=MSK-2,tier=gold|silver,cluster"} — условия на
+ *    {@code extraLabels} через запятую (все должны выполняться): {@code k=v},
+ *    {@code k!=v}, {@code k=v1|v2} (одно из), {@code k} (лейбл задан).
+ *
+ * Пустой атрибут — без ограничения. Если версия инстанса неизвестна,
+ * условие {@code minVersion} считается выполненным (запрос выполняется, как раньше).
+ */
+public final class QuerySelector {
+
+    private record LabelCondition(String key, Set<String> values, boolean negate) {
+        boolean matches(Map<String, String> labels) {
+            String v = labels.get(key);
+            if (values.isEmpty()) return v != null;
+            boolean in = v != null && values.contains(v);
+            return negate != in;
+        }
+    }
+
+    private final String dbTypes;
+    private final String minVersion;
+    private final String labels;
+
+    private final Set<DbType> dbTypeSet;
+    private final int[] minVersionParts;
+    private final List<LabelCondition> conditions;
+
+    private QuerySelector(String dbTypes, String minVersion, String labels) {
+        this.dbTypes    = dbTypes;
+        this.minVersion = minVersion;
+        this.labels     = labels;
+        this.dbTypeSet  = parseDbTypes(dbTypes);
+        this.minVersionParts = minVersion == null ? null : versionParts(minVersion);
+        this.conditions = parseLabels(labels);
+    }
+
+    /** Селектор из атрибутов; null — если ни одно условие не задано. */
+    public static QuerySelector of(String dbTypes, String minVersion, String labels) {
+        dbTypes    = blankToNull(dbTypes);
+        minVersion = blankToNull(minVersion);
+        labels     = blankToNull(labels);
+        if (dbTypes == null && minVersion == null && labels == null) return null;
+        return new QuerySelector(dbTypes, minVersion, labels);
+    }
+
+    public boolean matches(InstanceConfig ic) {
+        DbType type = ic.dbType == null ? DbType.MSSQL : ic.dbType;
+        if (dbTypeSet != null && !dbTypeSet.contains(type)) return false;
+        if (minVersionParts != null && ic.version != null
+                && compareVersions(versionParts(ic.version), minVersionParts) < 0) {
+            return false;
+        }
+        for (LabelCondition c : conditions) {
+            if (!c.matches(ic.extraLabels)) return false;
+        }
+        return true;
+    }
+
+    /* исходные строки — для записи обратно в XML */
+    public String dbTypes()    { return dbTypes; }
+    public String minVersion() { return minVersion; }
+    public String labels()     { return labels; }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof QuerySelector s && Objects.equals(dbTypes, s.dbTypes)
+                && Objects.equals(minVersion, s.minVersion) && Objects.equals(labels, s.labels);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(dbTypes, minVersion, labels);
+    }
+
+    @Override
+    public String toString() {
+        return "QuerySelector[dbType=" + dbTypes + ", minVersion=" + minVersion + ", labels=" + labels + "]";
+    }
+
+    /* ===================== helpers ===================== */
+
+    /**
+     * Неизвестный тип — ошибка конфига: он не подменяется на MSSQL, а
+     * отбрасывается с сообщением в лог. Если известных типов не осталось,
+     * набор пуст и запрос не выполняется нигде (а не везде).
+     */
+    private static Set<DbType> parseDbTypes(String s) {
+        if (s == null) return null;
+        Set<DbType> set = EnumSet.noneOf(DbType.class);
+        for (String part : s.split("[,;]")) {
+            if (part.isBlank()) continue;
+            DbType t = DbType.parseKnown(part);
+            if (t != null) {
+                set.add(t);
+            } else {
+                LogService.errorf("QuerySelector: unknown dbType '%s' in \"%s\" – value ignored%n", part.trim(), s);
+            }
+        }
+        if (set.isEmpty()) {
+            LogService.errorf("QuerySelector: no known dbType in \"%s\" – query matches no instance%n", s);
+        }
+        return set;
+    }
+
+    private static List<LabelCondition> parseLabels(String s) {
+        List<LabelCondition> list = new ArrayList<>();
+        if (s == null) return list;
+        for (String expr : s.split(",")) {
+            expr = expr.trim();
+            if (expr.isEmpty()) continue;
+            int ne = expr.indexOf("!=");
+            int eq = expr.indexOf('=');
+            if (ne > 0) {
+                list.add(new LabelCondition(expr.substring(0, ne).trim(), splitValues(expr.substring(ne + 2)), true));
+            } else if (eq > 0) {
+                list.add(new LabelCondition(expr.substring(0, eq).trim(), splitValues(expr.substring(eq + 1)), false));
+            } else {
+                list.add(new LabelCondition(expr, Set.of(), false));
+            }
+        }
+        return list;
+    }
+
+    private static Set<String> splitValues(String s) {
+        Set<String> values = new HashSet<>();
+        for (String v : s.split("\\|")) {
+            if (!v.isBlank()) values.add(v.trim());
+        }
+        return values;
+    }
+
+    /** "15.0.2000.5" → [15, 0, 2000, 5]; нечисловые части пропускаются. */
+    private static int[] versionParts(String v) {
+        List<Integer> parts = new ArrayList<>();
+        for (String p : v.trim().toLowerCase(Locale.ROOT).split("[^0-9]+")) {
+            if (p.isEmpty()) continue;
+            try {
+                parts.add(Integer.parseInt(p));
+            } catch (NumberFormatException e) {
+                parts.add(Integer.MAX_VALUE);
+            }
+        }
+        return parts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int compareVersions(int[] a, int[] b) {
+        for (int i = 0; i < Math.max(a.length, b.length); i++) {
+            int x = i < a.length ? a[i] : 0;
+            int y = i < b.length ? b[i] : 0;
+            if (x != y) return Integer.compare(x, y);
+        }
+        return 0;
+    }
+
+    private static String blankToNull(String s) {
+        return s == null || s.isBlank() ? null : s.trim();
+    }
+}
@@ -0,0 +1,111 @@
+package processor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Тело результата как поток: форматтер пишет в pipe
+ * ({@link ResultFormatter#streamTo}, UTF-8, при {@code gzip} — сжатое)
+ * в отдельном потоке, драйвер читает его через {@code setBinaryStream}
+ * или, через {@link #reader}, {@code setCharacterStream}. Целиком тело
+ * в памяти не собирается — в pipe лежит не больше {@code PIPE_BYTES} байт.
+ *
+ * Ограничение: исходные строки при этом уже в памяти — это {@link ResultBatch},
+ * вычитанный из курсора целиком (он один на всех получателей, а курсор
+ * закрывается до записи). Поток убирает только копию тела (String/byte[]
+ * размером с результат и ещё раз сжатую), поэтому пик памяти — O(результата)
+ * в колоночном виде, а не постоянный.
+ *
+ * Поток-писатель стартует при первом чтении, поэтому пачка из сотни
+ * результатов не держит сотню потоков: пишется только тот, который
+ * сейчас читает драйвер. Поток обязательно закрывать — иначе писатель
+ * останется ждать места в pipe.
+ */
+final class BodyPipe extends InputStream {
+
+    private static final int PIPE_BYTES = 64 * 1024;
+
+    private static final AtomicInteger SEQ = new AtomicInteger();
+    private static final ExecutorService PRODUCERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "body-pipe-" + SEQ.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ResultFormatter fmt;
+    private final String ci;
+    private final String reqId;
+    private final ResultBatch rs;
+    private final boolean gzip;
+
+    private PipedInputStream in;
+    private volatile Throwable failure;
+
+    BodyPipe(ResultFormatter fmt, String ci, String reqId, ResultBatch rs, boolean gzip) {
+        this.fmt = fmt;
+        this.ci = ci;
+        this.reqId = reqId;
+        this.rs = rs;
+        this.gzip = gzip;
+    }
+
+    /** Несжатое тело как текст. */
+    static Reader reader(ResultFormatter fmt, String ci, String reqId, ResultBatch rs) {
+        return new InputStreamReader(new BodyPipe(fmt, ci, reqId, rs, false), StandardCharsets.UTF_8);
+    }
+
+    /** Writer поверх потока: UTF-8, при gzip — через GZIPOutputStream. Закрытие закрывает и os. */
+    static Writer openWriter(OutputStream os, boolean gzip) throws IOException {
+        OutputStream target = gzip ? new GZIPOutputStream(os, 8192) : os;
+        // буфер: форматтеры пишут по символу
+        return new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 8192);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (in == null) start();
+        int n = in.read(buf, off, len);
+        if (n < 0 && failure != null) {
+            throw new IOException("body build error: " + failure.getMessage(), failure);
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) in.close();   // писатель получит "Pipe closed" и завершится
+    }
+
+    private void start() throws IOException {
+        in = new PipedInputStream(PIPE_BYTES);
+        Writer out = openWriter(new PipedOutputStream(in), gzip);
+        PRODUCERS.execute(() -> {
+            try {
+                fmt.streamTo(ci, reqId, rs, out);
+            } catch (Throwable t) {
+                failure = t;   // до закрытия pipe: читатель увидит ошибку, а не обрезанное тело
+            } finally {
+                try { out.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+}
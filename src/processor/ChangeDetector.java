@@ -0,0 +1,145 @@
+package processor;
+
+import logging.LogService;
+import model.QueryRequest;
+import scheduler.StateFiles;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Запись «только при изменении» для запросов с {@code writeOnChange="true"}.
+ *
+ * Для каждой пары (ci, reqId) помнится хэш последнего записанного результата.
+ * Хэш считается по тому, что форматтер выдал бы для результата
+ * ({@link HashingWriter}, тело в памяти не собирается). Результат с тем же
+ * хэшем не записывается; раз в {@code heartbeatCycles} выполнений он всё равно
+ * пишется, чтобы потребители видели, что данные свежие. Ошибка (результата
+ * нет) пишется всегда и сбрасывает хэш. Хэш запоминается только после
+ * доставки результата ({@link #written}), а не при решении писать.
+ *
+ * В режиме DAEMON хэши живут в памяти; в режиме RUN — в файле состояния
+ * (см. {@link StateFiles}), иначе каждый запуск cron-а писал бы всё заново.
+ */
+public final class ChangeDetector {
+
+    private record State(String hash, int skipped) {}
+
+    /** id result set-а → heartbeatCycles (0 — без heartbeat). */
+    private final Map<String, Integer> heartbeatById = new HashMap<>();
+    /** "ci|reqId" → последний записанный хэш и сколько раз подряд запись пропущена. */
+    private final Map<String, State> last = new ConcurrentHashMap<>();
+    private final Path stateFile;
+    private final XmlResultFormatter hashFormat = new XmlResultFormatter(false);
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    private ChangeDetector(List<QueryRequest> queries, Path stateFile) {
+        this.stateFile = stateFile;
+        for (QueryRequest qr : queries) {
+            if (!qr.isWriteOnChange()) continue;
+            int hb = qr.heartbeatCycles() == null ? 0 : Math.max(0, qr.heartbeatCycles());
+            for (int k = 0; k < qr.expectedResultSets(); k++) {
+                heartbeatById.put(qr.resultSetId(k), hb);
+            }
+        }
+    }
+
+    /** Хэши только в памяти (DAEMON). */
+    public static ChangeDetector inMemory(List<QueryRequest> queries) {
+        return new ChangeDetector(queries, null);
+    }
+
+    /** Хэши с файлом состояния (RUN). */
+    public static ChangeDetector load(List<QueryRequest> queries, Path stateFile) {
+        ChangeDetector d = new ChangeDetector(queries, stateFile);
+        Properties p = StateFiles.load(stateFile);
+        for (String key : p.stringPropertyNames()) {
+            String v = p.getProperty(key);
+            int colon = v.indexOf(':');
+            if (colon <= 0) continue;
+            try {
+                d.last.put(key, new State(v.substring(colon + 1), Integer.parseInt(v.substring(0, colon))));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return d;
+    }
+
+    public boolean isEnabled() {
+        return !heartbeatById.isEmpty();
+    }
+
+    /**
+     * Решение по результату: write=false — пропустить; hash — что запомнить через
+     * {@link #written}, когда результат действительно доставлен (null — запоминать нечего).
+     */
+    record Decision(boolean write, String hash) {}
+
+    private static final Decision WRITE = new Decision(true, null);
+
+    /**
+     * Нужно ли записывать результат. Хэш нового результата здесь не запоминается:
+     * если запись не удастся, следующий такой же результат не должен считаться
+     * «неизменившимся».
+     */
+    Decision decide(String ci, String reqId, ResultBatch rs) {
+        Integer heartbeat = heartbeatById.get(reqId);
+        if (heartbeat == null) return WRITE;
+
+        String key = ci + "|" + reqId;
+        if (rs == null) {
+            last.remove(key);
+            return WRITE;
+        }
+        HashingWriter hw = new HashingWriter();
+        try {
+            hashFormat.streamTo(ci, reqId, rs, hw);
+        } catch (IOException e) {
+            return WRITE;   // HashingWriter не бросает; на всякий случай — пишем
+        }
+        String hash = hw.hex();
+
+        State prev = last.get(key);
+        boolean unchanged = prev != null && prev.hash().equals(hash);
+        if (unchanged && (heartbeat == 0 || prev.skipped() + 1 < heartbeat)) {
+            last.put(key, new State(hash, prev.skipped() + 1));
+            skipped.increment();
+            return new Decision(false, hash);
+        }
+        written.increment();
+        return new Decision(true, hash);
+    }
+
+    /** Результат с этим хэшем доставлен — следующий такой же можно пропустить. */
+    void written(String ci, String reqId, String hash) {
+        last.put(ci + "|" + reqId, new State(hash, 0));
+    }
+
+    /** Печатает и сбрасывает счётчики. */
+    void logStats() {
+        if (!isEnabled()) return;
+        LogService.printf("[CHANGE] written=%d, skipped unchanged=%d%n",
+                written.sumThenReset(), skipped.sumThenReset());
+    }
+
+    /** Сохраняет хэши в файл (для варианта inMemory — ничего не делает). */
+    public void save() {
+        if (stateFile == null || !isEnabled()) return;
+        Properties p = new Properties();
+        last.forEach((k, s) -> {
+            // запросы, убранные из конфига или без writeOnChange, не тащим дальше
+            if (heartbeatById.containsKey(k.substring(k.lastIndexOf('|') + 1))) {
+                p.setProperty(k, s.skipped() + ":" + s.hash());
+            }
+        });
+        StateFiles.store(stateFile, p, "last written result hash per ci|reqId (skipped:sha256)");
+    }
+}
@@ -0,0 +1,60 @@
+package processor;
+
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Writer, который ничего не хранит, а только считает SHA-256 от всего,
+ * что в него записали. Форматтер стримит результат сюда — получается
+ * хэш содержимого без сборки тела в памяти.
+ */
+final class HashingWriter extends Writer {
+
+    private final MessageDigest digest;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+
+    HashingWriter() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);   // SHA-256 есть в любой JRE
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (pos + 2 > buf.length) drain();
+            char c = cbuf[i];
+            buf[pos++] = (byte) (c >>> 8);
+            buf[pos++] = (byte) c;
+        }
+    }
+
+    @Override
+    public void write(int c) {
+        if (pos + 2 > buf.length) drain();
+        buf[pos++] = (byte) (c >>> 8);
+        buf[pos++] = (byte) c;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+
+    /** Хэш всего записанного (hex). После вызова writer начинает заново. */
+    String hex() {
+        drain();
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void drain() {
+        digest.update(buf, 0, pos);
+        pos = 0;
+    }
+}
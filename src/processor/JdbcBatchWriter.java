@@ -0,0 +1,547 @@
+package processor;
+
+import com.microsoft.sqlserver.jdbc.SQLServerCallableStatement;
+import com.microsoft.sqlserver.jdbc.SQLServerDataTable;
+import logging.LogService;
+import model.DbType;
+import model.DestinationConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Пакетная запись результатов в JDBC-получатель (MSSQL / OCEANBASE).
+ *
+ * Результаты копятся в буфере и уходят одной пачкой, когда их набралось
+ * {@code WriteBatchSize} или прошло {@code WriteBatchFlushMs} с прошлой записи.
+ * Соединения с получателем не закрываются после каждой записи, а держатся
+ * открытыми (по одному на поток, который пишет одновременно с другими).
+ *
+ * Как пишется пачка:
+ *  - хранимая процедура + {@code WriteTvpType} (только MSSQL) — один вызов
+ *    {@code {call sp(?)}} с table-valued параметром (ci, req_id, body, result_exec);
+ *  - INSERT ... VALUES (?, ?, ?, ?) для OCEANBASE — один многострочный
+ *    INSERT ... VALUES (...), (...), ...;
+ *  - всё остальное — addBatch / executeBatch.
+ *
+ * При {@code StreamBody=true} тело не собирается в строку: драйвер читает его
+ * через {@code setCharacterStream} из {@link BodyPipe}. При {@code BodyChunkSize > 0}
+ * тело уходит кусками с номером (процедура с параметрами ci, reqId, chunk,
+ * resultExec, seq, isLast) — для процедур с ограниченным размером параметра.
+ * При {@code ResultCompression=GZIP} тело передаётся как varbinary: GZIP
+ * от UTF-8 текста, на сервере разжимается через {@code DECOMPRESS()}.
+ * Если пачка не записалась, её строки пишутся по одной на новом соединении,
+ * чтобы одна плохая строка не теряла остальные. Строки, которые не записались
+ * из-за недоступности получателя, при включённом outbox передаются в
+ * {@code unavailable} (см. {@link ResultOutbox}), а не только в лог.
+ */
+final class JdbcBatchWriter {
+
+    /**
+     * Один результат для записи: параметры процедуры/INSERT в прежнем порядке.
+     * body == null — тело не собрано в строку и стримится из rows при записи
+     * ({@code StreamBody} / {@code BodyChunkSize}).
+     * source — исходный результат для повторной доставки через outbox (может быть null).
+     */
+    record Row(String ci, String reqId, String body, ResultBatch rows, String resultExec, SinkStage.Item source) {}
+
+    /** INSERT INTO t (...) VALUES (?, ?, ?, ?) — пригоден для многострочной записи. */
+    private static final Pattern SIMPLE_INSERT = Pattern.compile(
+            "(?is)^\\s*(insert\\s+into\\s+.+?\\s+values)\\s*\\(\\s*\\?\\s*,\\s*\\?\\s*,\\s*\\?\\s*,\\s*\\?\\s*\\)\\s*;?\\s*$");
+
+    /** Ограничение размера одного многострочного INSERT (max_allowed_packet). */
+    private static final int MULTI_ROW_MAX_CHARS = 4_000_000;
+
+    private final DbType dbType;
+    private final String url;
+    private final String sql;
+    private final boolean isSP;
+    private final String tvpType;
+    /** "INSERT INTO t (...) VALUES" для многострочной записи; null — не используется. */
+    private final String insertHead;
+    private final int batchSize;
+    private final int maxIdle;
+    /** Форматтер для тел, которые стримятся (Row.body == null). */
+    private final ResultFormatter fmt;
+    /** Размер куска тела в символах (при сжатии — в байтах); 0 — тело одним параметром. */
+    private final int chunkChars;
+    /** ResultCompression=GZIP: тело уходит как varbinary. */
+    private final boolean gzip;
+    private final boolean streamBody;
+    /** Строки, которые получатель записал (подтверждение доставки). */
+    private final Consumer<Row> written;
+    /** Строки, не записанные из-за недоступности получателя (null — только в лог). */
+    private final Consumer<Row> unavailable;
+
+    private final Object lock = new Object();
+    private List<Row> buffer = new ArrayList<>();
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService flusher;
+
+    JdbcBatchWriter(DbType dbType, DestinationConfig cfg, ResultFormatter fmt,
+                    Consumer<Row> written, Consumer<Row> unavailable) {
+        this.dbType    = dbType;
+        this.written   = written;
+        this.unavailable = unavailable;
+        this.fmt       = fmt;
+        this.chunkChars = Math.max(0, cfg.bodyChunkSize);
+        this.gzip      = ResponseProcessor.isGzip(cfg);
+        this.streamBody = cfg.streamBody;
+        this.url       = cfg.mssqlConnectionString;
+        this.sql       = cfg.mssqlQuery == null ? "" : cfg.mssqlQuery.trim();
+        // Эвристика: одно слово (или schema.sp) — считаем именем хранимой процедуры.
+        this.isSP      = sql.matches("(?i)^([\\[]?\\w+[\\]]?\\.)?[\\[]?\\w+[\\]]?$");
+        this.tvpType   = dbType == DbType.MSSQL && isSP && cfg.writeTvpType != null && !cfg.writeTvpType.isBlank()
+                ? cfg.writeTvpType.trim() : null;
+        Matcher m      = SIMPLE_INSERT.matcher(sql);
+        this.insertHead = dbType == DbType.OCEANBASE && m.matches() ? m.group(1) : null;
+        this.batchSize = Math.max(1, cfg.writeBatchSize);
+        this.maxIdle   = cfg.sinkQueueSize > 0 ? Math.max(1, cfg.sinkThreads) + 1
+                : cfg.maxConcurrentWrites > 0 ? cfg.maxConcurrentWrites + 1 : 8;
+
+        // Явная регистрация драйвера
+        try { Class.forName(dbType.driverClass()); } catch (ClassNotFoundException ignored) {}
+
+        if (batchSize > 1) {
+            long flushMs = Math.max(10, cfg.writeBatchFlushMs);
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "jdbc-batch-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushMs, flushMs, TimeUnit.MILLISECONDS);
+            LogService.printf("[RESP] %s batched writes: up to %d results or %d ms per batch (%s)%n",
+                    dbType, batchSize, flushMs,
+                    tvpType != null ? "TVP " + tvpType : insertHead != null ? "multi-row INSERT" : "executeBatch");
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /** Добавить результат; если набралась пачка — записать её в текущем потоке. */
+    void add(Row row) {
+        List<Row> full = null;
+        synchronized (lock) {
+            buffer.add(row);
+            if (buffer.size() >= batchSize) {
+                full = buffer;
+                buffer = new ArrayList<>();
+            }
+        }
+        if (full != null) write(full);
+    }
+
+    /** Записать всё накопленное. */
+    void flush() {
+        List<Row> rows;
+        synchronized (lock) {
+            if (buffer.isEmpty()) return;
+            rows = buffer;
+            buffer = new ArrayList<>();
+        }
+        write(rows);
+    }
+
+    /**
+     * Записать одну строку сразу, мимо буфера пачки (повтор из outbox).
+     * Ошибка пробрасывается и в outbox через {@code unavailable} не уходит.
+     */
+    void writeNow(Row row) throws SQLException {
+        Connection conn = borrow();
+        try {
+            writeBatch(conn, List.of(row));
+        } catch (SQLException ex) {
+            closeSilently(conn);
+            throw ex;
+        }
+        giveBack(conn);
+        LogService.printf("[RESP] %s_%s -> %s OK%n", row.ci(), row.reqId(), dbType);
+    }
+
+    /** Записать остаток и закрыть соединения. */
+    void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);   // пачка, которую таймер уже пишет
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        synchronized (idle) {
+            for (Connection c : idle) closeSilently(c);
+            idle.clear();
+        }
+    }
+
+    /* ===================== запись ===================== */
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            // исключение отменило бы все следующие срабатывания таймера
+            LogService.errorf("[RESP] %s batch flush failed: %s%n", dbType, e.getMessage());
+        }
+    }
+
+    /** Ошибки не пробрасываются: каждая незаписанная строка логируется как раньше. */
+    private void write(List<Row> rows) {
+        long t0 = System.nanoTime();
+        Connection conn;
+        try {
+            conn = borrow();
+        } catch (SQLException ex) {
+            for (Row r : rows) failed(r, ex);
+            return;
+        }
+        try {
+            writeBatch(conn, rows);
+            giveBack(conn);
+            for (Row r : rows) written.accept(r);
+            if (rows.size() == 1) {
+                LogService.printf("[RESP] %s_%s -> %s OK%n", rows.get(0).ci(), rows.get(0).reqId(), dbType);
+            } else {
+                LogService.printf("[RESP] batch of %d results -> %s OK (%d ms)%n",
+                        rows.size(), dbType, (System.nanoTime() - t0) / 1_000_000);
+            }
+        } catch (SQLException ex) {
+            closeSilently(conn);
+            if (ex instanceof PartialWrite pw && pw.written > 0) {
+                // уже закоммиченные строки не повторяем — иначе их куски задвоятся
+                LogService.printf("[RESP] %d of %d results -> %s OK before failure%n",
+                        pw.written, rows.size(), dbType);
+                for (Row r : rows.subList(0, pw.written)) written.accept(r);
+                rows = rows.subList(pw.written, rows.size());
+            }
+            if (rows.size() == 1 || (unavailable != null && ResultOutbox.isUnavailable(ex))) {
+                for (Row r : rows) failed(r, ex);   // по одной на лежащий получатель — только лишние таймауты
+                return;
+            }
+            LogService.errorf("[RESP] batch of %d results -> %s failed (%s), retrying one by one%n",
+                    rows.size(), dbType, ex.getMessage());
+            writeOneByOne(rows);
+        }
+    }
+
+    private void writeOneByOne(List<Row> rows) {
+        Connection conn = null;
+        SQLException down = null;
+        for (Row r : rows) {
+            if (down != null) {
+                failed(r, down);   // соединиться уже не удалось — остальные не ждут таймаута
+                continue;
+            }
+            try {
+                if (conn == null) {
+                    try {
+                        conn = borrow();
+                    } catch (SQLException ex) {
+                        down = ex;
+                        throw ex;
+                    }
+                }
+                writeBatch(conn, List.of(r));
+                written.accept(r);
+                LogService.printf("[RESP] %s_%s -> %s OK%n", r.ci(), r.reqId(), dbType);
+            } catch (SQLException ex) {
+                failed(r, ex);
+                if (conn != null && !isAlive(conn)) {
+                    closeSilently(conn);
+                    conn = null;
+                }
+            }
+        }
+        if (conn != null) giveBack(conn);
+    }
+
+    /**
+     * Ошибки формирования тела (UncheckedIOException, сбой форматтера) приходят
+     * как SQLException: иначе они вылетели бы мимо закрытия соединения и мимо
+     * written/failed, и подтверждения строк ждали бы вечно.
+     */
+    private void writeBatch(Connection conn, List<Row> rows) throws SQLException {
+        if (chunkChars > 0) {
+            writeChunked(conn, rows);
+            return;
+        }
+        List<Closeable> opened = new ArrayList<>();
+        try {
+            if (tvpType != null) {
+                Tvp.call(conn, sql, tvpType, rows, gzip, this::bodyValue);
+            } else if (insertHead != null && rows.size() > 1) {
+                writeMultiRowInsert(conn, rows, opened);
+            } else if (isSP) {
+                try (CallableStatement cs = conn.prepareCall("{call " + sql + " (?, ?, ?, ?)}")) {
+                    executeBatch(cs, rows, opened);
+                }
+            } else {
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    executeBatch(ps, rows, opened);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new SQLException("result body failed: " + e, e);
+        } finally {
+            for (Closeable c : opened) closeQuietly(c);
+        }
+    }
+
+    private void executeBatch(PreparedStatement ps, List<Row> rows, List<Closeable> opened) throws SQLException {
+        if (rows.size() == 1) {
+            bind(ps, 0, rows.get(0), opened);
+            ps.execute();
+            return;
+        }
+        for (Row r : rows) {
+            bind(ps, 0, r, opened);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    /**
+     * Тело кусками по {@code BodyChunkSize} символов (при сжатии — байт): на
+     * каждый кусок — вызов (ci, reqId, chunk, resultExec, seq, isLast), seq с 1.
+     * В памяти только текущий и следующий кусок, как бы велик ни был результат.
+     * Куски одной строки коммитятся вместе: оборванная строка откатывается целиком,
+     * а при ошибке {@link PartialWrite} сообщает, сколько строк уже записано.
+     */
+    private void writeChunked(Connection conn, List<Row> rows) throws SQLException {
+        String call = isSP ? "{call " + sql + " (?, ?, ?, ?, ?, ?)}" : sql;
+        int written = 0;
+        conn.setAutoCommit(false);   // куски одной строки — одна транзакция
+        try (PreparedStatement ps = isSP ? conn.prepareCall(call) : conn.prepareStatement(call)) {
+            for (Row r : rows) {
+                writeChunks(ps, r);
+                conn.commit();
+                written++;
+            }
+        } catch (SQLException ex) {
+            try { conn.rollback(); } catch (SQLException ignored) {}
+            throw new PartialWrite(written, ex);
+        } finally {
+            try { conn.setAutoCommit(true); } catch (SQLException ignored) {}
+        }
+    }
+
+    private void writeChunks(PreparedStatement ps, Row r) throws SQLException {
+        try (InputStream bin = gzip ? new BodyPipe(fmt, r.ci(), r.reqId(), r.rows(), true) : null;
+             Reader text = gzip ? null : r.body() != null ? new StringReader(r.body())
+                     : BodyPipe.reader(fmt, r.ci(), r.reqId(), r.rows())) {
+            Object cur = nextChunk(text, bin);
+            if (cur == null) cur = gzip ? new byte[0] : "";
+            int seq = 1;
+            while (true) {
+                Object next = nextChunk(text, bin);
+                ps.setString(1, r.ci());
+                ps.setString(2, r.reqId());
+                if (cur instanceof byte[] bytes) ps.setBytes(3, bytes);
+                else ps.setString(3, (String) cur);
+                ps.setString(4, r.resultExec());
+                ps.setInt(5, seq++);
+                ps.setBoolean(6, next == null);
+                ps.execute();
+                if (next == null) break;
+                cur = next;
+            }
+        } catch (IOException e) {
+            throw new SQLException("body stream failed: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            throw new SQLException("result body failed: " + e, e);   // строка откатится, PartialWrite посчитает
+        }
+    }
+
+    /** Ошибка writeChunked: первые {@code written} строк уже закоммичены. */
+    private static final class PartialWrite extends SQLException {
+        private static final long serialVersionUID = 1L;
+        final int written;
+
+        PartialWrite(int written, SQLException cause) {
+            super(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), cause);
+            this.written = written;
+            setNextException(cause.getNextException());
+        }
+    }
+
+    /** Следующий кусок тела: String (text) или byte[] (bin); null — тело кончилось. */
+    private Object nextChunk(Reader text, InputStream bin) throws IOException {
+        if (bin != null) {
+            byte[] b = bin.readNBytes(chunkChars);
+            return b.length == 0 ? null : b;
+        }
+        char[] buf = new char[chunkChars];
+        int n = 0;
+        while (n < buf.length) {
+            int k = text.read(buf, n, buf.length - n);
+            if (k < 0) break;
+            n += k;
+        }
+        return n == 0 ? null : new String(buf, 0, n);
+    }
+
+    /** INSERT ... VALUES (?,?,?,?),(?,?,?,?),... кусками не больше MULTI_ROW_MAX_CHARS. */
+    private void writeMultiRowInsert(Connection conn, List<Row> rows, List<Closeable> opened) throws SQLException {
+        int from = 0;
+        while (from < rows.size()) {
+            int to = from;
+            long chars = 0;
+            while (to < rows.size() && (to == from || chars + weight(rows.get(to)) <= MULTI_ROW_MAX_CHARS)) {
+                chars += weight(rows.get(to));
+                to++;
+            }
+            StringBuilder sb = new StringBuilder(insertHead).append(' ');
+            for (int i = from; i < to; i++) {
+                sb.append(i == from ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+            }
+            try (PreparedStatement ps = conn.prepareStatement(sb.toString())) {
+                for (int i = from; i < to; i++) bind(ps, (i - from) * 4, rows.get(i), opened);
+                ps.executeUpdate();
+            }
+            from = to;
+        }
+    }
+
+    /** Оценка размера тела; для стримящегося — по числу ячеек. */
+    private static long weight(Row r) {
+        if (r.body() != null) return r.body().length() + 256L;
+        return r.rows() == null ? 256 : (long) r.rows().rowCount() * r.rows().columnCount() * 32 + 256;
+    }
+
+    private void bind(PreparedStatement ps, int offset, Row r, List<Closeable> opened) throws SQLException {
+        ps.setString(offset + 1, r.ci());
+        ps.setString(offset + 2, r.reqId());
+        if (r.body() != null) {
+            ps.setString(offset + 3, r.body());
+        } else if (gzip && streamBody) {
+            InputStream body = new BodyPipe(fmt, r.ci(), r.reqId(), r.rows(), true);
+            opened.add(body);
+            ps.setBinaryStream(offset + 3, body);
+        } else if (gzip) {
+            ps.setBytes(offset + 3, gzipBody(r));
+        } else {
+            Reader body = BodyPipe.reader(fmt, r.ci(), r.reqId(), r.rows());
+            opened.add(body);
+            ps.setCharacterStream(offset + 3, body);
+        }
+        ps.setString(offset + 4, r.resultExec());
+    }
+
+    /** Тело целиком — для TVP, где параметр нельзя отдать потоком. */
+    private Object bodyValue(Row r) {
+        if (gzip) return gzipBody(r);
+        return r.body() != null ? r.body() : fmt.format(r.ci(), r.reqId(), r.rows()).body();
+    }
+
+    /** GZIP-тело в памяти: форматтер пишет сразу в сжимающий поток, без промежуточной строки. */
+    private byte[] gzipBody(Row r) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (Writer w = BodyPipe.openWriter(bos, true)) {
+            fmt.streamTo(r.ci(), r.reqId(), r.rows(), w);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);   // ByteArrayOutputStream не бросает
+        }
+        return bos.toByteArray();
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try { c.close(); } catch (IOException ignored) {}
+    }
+
+    /** Отдельный класс, чтобы классы mssql-jdbc грузились только при WriteTvpType. */
+    private static final class Tvp {
+        static void call(Connection conn, String sp, String type, List<Row> rows, boolean binaryBody,
+                         Function<Row, Object> body) throws SQLException {
+            SQLServerDataTable table = new SQLServerDataTable();
+            table.addColumnMetadata("ci", Types.NVARCHAR);
+            table.addColumnMetadata("req_id", Types.NVARCHAR);
+            table.addColumnMetadata("body", binaryBody ? Types.VARBINARY : Types.NVARCHAR);
+            table.addColumnMetadata("result_exec", Types.NVARCHAR);
+            for (Row r : rows) {
+                table.addRow(r.ci(), r.reqId(), body.apply(r), r.resultExec());
+            }
+            try (CallableStatement cs = conn.prepareCall("{call " + sp + " (?)}")) {
+                cs.unwrap(SQLServerCallableStatement.class).setStructured(1, type, table);
+                cs.execute();
+            }
+        }
+    }
+
+    /* ===================== соединения ===================== */
+
+    private Connection borrow() throws SQLException {
+        while (true) {
+            Connection c;
+            synchronized (idle) { c = idle.pollFirst(); }
+            if (c == null) return DriverManager.getConnection(url);
+            if (isAlive(c)) return c;
+            closeSilently(c);
+        }
+    }
+
+    private void giveBack(Connection c) {
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(c);
+                return;
+            }
+        }
+        closeSilently(c);
+    }
+
+    private static boolean isAlive(Connection c) {
+        try {
+            return !c.isClosed() && c.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /** Недоступность получателя — в outbox (если включён), остальное — в лог. */
+    private void failed(Row r, SQLException ex) {
+        if (unavailable != null && r.source() != null && ResultOutbox.isUnavailable(ex)) {
+            unavailable.accept(r);
+            return;
+        }
+        logRowError(r, ex);
+    }
+
+    private void logRowError(Row r, SQLException ex) {
+        LogService.error(String.format("[CI=%s][ReqID=%s] SQL-ERROR: %s", r.ci(), r.reqId(), ex.getMessage()));
+        SQLException next = ex.getNextException();
+        while (next != null) {
+            LogService.errorln("[SQL-ERROR] code: " + next.getErrorCode() +
+                    ", state: " + next.getSQLState() +
+                    ", message: " + next.getMessage());
+            next = next.getNextException();
+        }
+    }
+
+    private static void closeSilently(Connection c) {
+        try { if (c != null && !c.isClosed()) c.close(); } catch (Exception ignored) {}
+    }
+}
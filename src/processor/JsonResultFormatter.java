@@ -3,13 +3,10 @@ package processor;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
 import java.sql.Types;
 
 /**
- * Сериализация ResultSet в JSON ровно следующей формы:
+ * Сериализация результата в JSON ровно следующей формы:
  *
  *   {"ci":"CI00002","reqId":"PERF","rows":[
  *      {"col1":"val1","col2":42,...},
@@ -27,7 +24,7 @@ import java.sql.Types;
 public class JsonResultFormatter implements ResultFormatter {
 
     @Override
-    public int streamTo(String ci, String reqId, ResultSet rs, Writer w) throws SQLException, IOException {
+    public int streamTo(String ci, String reqId, ResultBatch rs, Writer w) throws IOException {
         w.write("{\"ci\":");
         writeString(w, ci);
         w.write(",\"reqId\":");
@@ -36,20 +33,15 @@ public class JsonResultFormatter implements ResultFormatter {
 
         int rowCnt = 0;
         if (rs != null) {
-            ResultSetMetaData md = rs.getMetaData();
-            int cols = md.getColumnCount();
-            boolean firstRow = true;
-            while (rs.next()) {
-                if (!firstRow) w.write(",");
-                firstRow = false;
+            int cols = rs.columnCount();
+            for (int r = 0; r < rs.rowCount(); r++) {
+                if (r > 0) w.write(",");
                 w.write("{");
-                for (int c = 1; c <= cols; c++) {
-                    if (c > 1) w.write(",");
-                    String col = md.getColumnLabel(c);
-                    if (col == null || col.isEmpty()) col = md.getColumnName(c);
-                    writeString(w, col);
+                for (int c = 0; c < cols; c++) {
+                    if (c > 0) w.write(",");
+                    writeString(w, rs.columnName(c));
                     w.write(":");
-                    writeJsonValue(w, rs, c, md.getColumnType(c));
+                    writeJsonValue(w, rs, r, c);
                 }
                 w.write("}");
                 rowCnt++;
@@ -60,7 +52,7 @@ public class JsonResultFormatter implements ResultFormatter {
     }
 
     @Override
-    public FormatResult format(String ci, String reqId, ResultSet rs) throws SQLException {
+    public FormatResult format(String ci, String reqId, ResultBatch rs) {
         StringWriter sw = new StringWriter();
         int rows;
         try {
@@ -76,15 +68,13 @@ public class JsonResultFormatter implements ResultFormatter {
 
     /* ===== внутренности ===== */
 
-    private static void writeJsonValue(Writer w, ResultSet rs, int col, int sqlType)
-            throws SQLException, IOException {
-        // Сначала проверяем NULL — getString и getBoolean ведут себя по-разному с NULL
-        String val = rs.getString(col);
+    private static void writeJsonValue(Writer w, ResultBatch rs, int row, int col) throws IOException {
+        String val = rs.getString(row, col);
         if (val == null) { w.write("null"); return; }
 
-        switch (sqlType) {
+        switch (rs.columnType(col)) {
             case Types.BIT, Types.BOOLEAN -> {
-                boolean b = rs.getBoolean(col);
+                boolean b = rs.getBoolean(row, col);
                 w.write(b ? "true" : "false");
             }
             case Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT,
@@ -0,0 +1,295 @@
+package processor;
+
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkData;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import logging.LogService;
+import model.DbType;
+import model.DestinationConfig;
+import model.InstanceConfig;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Получатель MSSQL_BULK: строки результата пишутся как есть в типизированную
+ * таблицу через {@link SQLServerBulkCopy}, без сериализации в XML и без
+ * разбора XML на стороне сервера.
+ *
+ * Таблица — по {@code BulkTable} с подстановкой {@code {reqId}}. Колонки:
+ * ci, req_id, collected_at + колонки результата (сопоставляются по имени).
+ * При {@code BulkAutoCreate=true} отсутствующая таблица создаётся по
+ * метаданным первого результата (типы SQL Server — по java.sql.Types).
+ *
+ * Bulk copy идёт с TABLOCK — для кучи без индексов это минимально
+ * протоколируемая вставка.
+ */
+final class MssqlBulkWriter {
+
+    private static final int MAX_IDLE = 8;
+    private static final String[] PREFIX = {"ci", "req_id", "collected_at"};
+
+    private final String url;
+    private final String tablePattern;
+    private final boolean autoCreate;
+    /** Таблицы, существование которых уже проверено. */
+    private final Set<String> knownTables = ConcurrentHashMap.newKeySet();
+    private final Deque<Connection> idle = new ArrayDeque<>();
+
+    MssqlBulkWriter(DestinationConfig cfg) {
+        this.url = cfg.mssqlConnectionString;
+        this.tablePattern = cfg.bulkTable == null || cfg.bulkTable.isBlank()
+                ? "dbo.collector_{reqId}" : cfg.bulkTable.trim();
+        this.autoCreate = cfg.bulkAutoCreate;
+        try { Class.forName(DbType.MSSQL.driverClass()); } catch (ClassNotFoundException ignored) {}
+    }
+
+    void write(InstanceConfig ic, String reqId, ResultBatch rs, String resultExec) throws SQLException {
+        if (rs == null) {
+            // строк нет — писать в таблицу нечего, ошибка остаётся в логе
+            LogService.errorf("[RESP] %s_%s -> MSSQL_BULK skipped: %s%n", ic.ci, reqId, resultExec);
+            return;
+        }
+        String table = tableName(reqId);
+        Connection conn = borrow();
+        try {
+            if (autoCreate && !knownTables.contains(table)) {
+                createIfMissing(conn, table, rs);
+                knownTables.add(table);
+            }
+            if (rs.rowCount() > 0) {
+                try (SQLServerBulkCopy bulk = new SQLServerBulkCopy(conn)) {
+                    SQLServerBulkCopyOptions opts = new SQLServerBulkCopyOptions();
+                    opts.setTableLock(true);
+                    opts.setBulkCopyTimeout(0);
+                    bulk.setBulkCopyOptions(opts);
+                    bulk.setDestinationTableName(table);
+                    for (String c : PREFIX) bulk.addColumnMapping(c, c);
+                    for (int c = 0; c < rs.columnCount(); c++) {
+                        bulk.addColumnMapping(rs.columnName(c), rs.columnName(c));
+                    }
+                    bulk.writeToServer(new BatchBulkData(ic.ci, reqId, rs));
+                }
+            }
+            giveBack(conn);
+            LogService.printf("[RESP] %s_%s (%d rows) -> %s%n", ic.ci, reqId, rs.rowCount(), table);
+        } catch (SQLException ex) {
+            closeSilently(conn);
+            throw ex;
+        } catch (RuntimeException ex) {
+            // ошибка BatchBulkData.value() посреди writeToServer — соединение в неизвестном состоянии
+            closeSilently(conn);
+            throw new SQLException("bulk copy failed: " + ex, ex);
+        }
+    }
+
+    void close() {
+        synchronized (idle) {
+            for (Connection c : idle) closeSilently(c);
+            idle.clear();
+        }
+    }
+
+    /* ===================== таблица ===================== */
+
+    private String tableName(String reqId) {
+        return tablePattern.replace("{reqId}", reqId.replaceAll("[^A-Za-z0-9_]", "_"));
+    }
+
+    private static void createIfMissing(Connection conn, String table, ResultBatch rs) throws SQLException {
+        String quoted = quoteName(table);
+        StringBuilder ddl = new StringBuilder()
+                .append("IF OBJECT_ID(N'").append(quoted.replace("'", "''")).append("', N'U') IS NULL\n")
+                .append("CREATE TABLE ").append(quoted).append(" (\n")
+                .append("  [ci] nvarchar(128) NOT NULL,\n")
+                .append("  [req_id] nvarchar(128) NOT NULL,\n")
+                .append("  [collected_at] datetime2(3) NOT NULL");
+        for (int c = 0; c < rs.columnCount(); c++) {
+            ddl.append(",\n  ").append(quoteIdent(rs.columnName(c))).append(' ').append(sqlServerType(rs, c)).append(" NULL");
+        }
+        ddl.append("\n)");
+        try (Statement st = conn.createStatement()) {
+            st.execute(ddl.toString());
+        }
+    }
+
+    /** T-SQL тип колонки по java.sql.Types и precision/scale результата. */
+    private static String sqlServerType(ResultBatch rs, int c) {
+        int p = rs.columnPrecision(c);
+        int s = rs.columnScale(c);
+        return switch (rs.columnType(c)) {
+            case Types.BIT, Types.BOOLEAN -> "bit";
+            case Types.TINYINT   -> "tinyint";
+            case Types.SMALLINT  -> "smallint";
+            case Types.INTEGER   -> "int";
+            case Types.BIGINT    -> "bigint";
+            case Types.REAL, Types.FLOAT, Types.DOUBLE -> "float";
+            case Types.DECIMAL, Types.NUMERIC -> p <= 0 || p > 38
+                    ? "decimal(38,10)"
+                    : "decimal(" + p + "," + Math.max(0, Math.min(s, p)) + ")";
+            case Types.DATE      -> "date";
+            case Types.TIMESTAMP -> "datetime2(3)";   // ResultBatch хранит время с точностью до мс
+            default -> p > 0 && p <= 4000 ? "nvarchar(" + p + ")" : "nvarchar(max)";
+        };
+    }
+
+    /** "dbo.t" → "[dbo].[t]" (уже заключённые в [] части не трогаются). */
+    private static String quoteName(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : name.split("\\.")) {
+            if (!sb.isEmpty()) sb.append('.');
+            sb.append(part.startsWith("[") ? part : quoteIdent(part));
+        }
+        return sb.toString();
+    }
+
+    private static String quoteIdent(String s) {
+        return "[" + s.replace("]", "]]") + "]";
+    }
+
+    /* ===================== источник для bulk copy ===================== */
+
+    /**
+     * ResultBatch как источник bulk copy. Ординалы: 1..3 — ci, req_id,
+     * collected_at; дальше колонки результата. Значения отдаются объектами
+     * того Java-типа, который драйвер ждёт для заявленного SQL-типа.
+     */
+    private static final class BatchBulkData implements ISQLServerBulkData {
+        private static final long serialVersionUID = 1L;
+
+        private final String ci;
+        private final String reqId;
+        private final Timestamp collectedAt = new Timestamp(System.currentTimeMillis());
+        private final ResultBatch rs;
+        private final int[] types;
+        private int row = -1;
+
+        BatchBulkData(String ci, String reqId, ResultBatch rs) {
+            this.ci = ci;
+            this.reqId = reqId;
+            this.rs = rs;
+            this.types = new int[rs.columnCount()];
+            for (int c = 0; c < types.length; c++) types[c] = sourceType(rs.columnType(c));
+        }
+
+        @Override
+        public Set<Integer> getColumnOrdinals() {
+            Set<Integer> set = new LinkedHashSet<>();
+            for (int i = 1; i <= PREFIX.length + types.length; i++) set.add(i);
+            return set;
+        }
+
+        @Override
+        public String getColumnName(int ordinal) {
+            return ordinal <= PREFIX.length ? PREFIX[ordinal - 1] : rs.columnName(ordinal - PREFIX.length - 1);
+        }
+
+        @Override
+        public int getColumnType(int ordinal) {
+            if (ordinal <= PREFIX.length) return ordinal == 3 ? Types.TIMESTAMP : Types.NVARCHAR;
+            return types[ordinal - PREFIX.length - 1];
+        }
+
+        @Override
+        public int getPrecision(int ordinal) {
+            if (ordinal <= PREFIX.length) return ordinal == 3 ? 23 : 128;
+            int c = ordinal - PREFIX.length - 1;
+            return switch (types[c]) {
+                case Types.DECIMAL -> rs.columnPrecision(c) <= 0 || rs.columnPrecision(c) > 38 ? 38 : rs.columnPrecision(c);
+                case Types.NVARCHAR -> rs.columnPrecision(c) > 0 && rs.columnPrecision(c) <= 4000 ? rs.columnPrecision(c) : 0;
+                default -> 0;
+            };
+        }
+
+        @Override
+        public int getScale(int ordinal) {
+            if (ordinal <= PREFIX.length) return ordinal == 3 ? 3 : 0;
+            int c = ordinal - PREFIX.length - 1;
+            if (types[c] == Types.DECIMAL) {
+                return rs.columnPrecision(c) <= 0 || rs.columnPrecision(c) > 38 ? 10 : Math.max(0, rs.columnScale(c));
+            }
+            return types[c] == Types.TIMESTAMP ? 3 : 0;
+        }
+
+        @Override
+        public boolean next() {
+            return ++row < rs.rowCount();
+        }
+
+        @Override
+        public Object[] getRowData() {
+            Object[] data = new Object[PREFIX.length + types.length];
+            data[0] = ci;
+            data[1] = reqId;
+            data[2] = collectedAt;
+            for (int c = 0; c < types.length; c++) {
+                data[PREFIX.length + c] = rs.isNull(row, c) ? null : value(c);
+            }
+            return data;
+        }
+
+        private Object value(int c) {
+            return switch (types[c]) {
+                case Types.BIT       -> rs.getBoolean(row, c);
+                case Types.TINYINT, Types.SMALLINT -> (short) rs.getLong(row, c);
+                case Types.INTEGER   -> (int) rs.getLong(row, c);
+                case Types.BIGINT    -> rs.getLong(row, c);
+                case Types.DOUBLE    -> rs.getDouble(row, c);
+                case Types.DECIMAL   -> rs.getBigDecimal(row, c);
+                case Types.DATE      -> new Date(rs.getTimestampMillis(row, c));
+                case Types.TIMESTAMP -> new Timestamp(rs.getTimestampMillis(row, c));
+                default              -> rs.getString(row, c);
+            };
+        }
+
+        /** Тип, под которым колонка отдаётся драйверу (должен соответствовать sqlServerType). */
+        private static int sourceType(int t) {
+            return switch (t) {
+                case Types.BIT, Types.BOOLEAN -> Types.BIT;
+                case Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT -> t;
+                case Types.REAL, Types.FLOAT, Types.DOUBLE -> Types.DOUBLE;
+                case Types.DECIMAL, Types.NUMERIC -> Types.DECIMAL;
+                case Types.DATE, Types.TIMESTAMP -> t;
+                default -> Types.NVARCHAR;
+            };
+        }
+    }
+
+    /* ===================== соединения ===================== */
+
+    private Connection borrow() throws SQLException {
+        while (true) {
+            Connection c;
+            synchronized (idle) { c = idle.pollFirst(); }
+            if (c == null) return DriverManager.getConnection(url);
+            try {
+                if (!c.isClosed() && c.isValid(2)) return c;
+            } catch (SQLException ignored) {}
+            closeSilently(c);
+        }
+    }
+
+    private void giveBack(Connection c) {
+        synchronized (idle) {
+            if (idle.size() < MAX_IDLE) {
+                idle.addFirst(c);
+                return;
+            }
+        }
+        closeSilently(c);
+    }
+
+    private static void closeSilently(Connection c) {
+        try { if (c != null && !c.isClosed()) c.close(); } catch (Exception ignored) {}
+    }
+}
@@ -1,5 +1,6 @@
 package processor;
 
+import db.SqlErrorClassifier;
 import logging.LogService;
 import model.DestinationConfig;
 import model.InstanceConfig;
@@ -9,8 +10,7 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.List;
@@ -20,7 +20,7 @@ import java.util.Objects;
 import java.util.stream.Collectors;
 
 /**
- * Преобразует ResultSet в Prometheus exposition-формат и
+ * Преобразует результат запроса ({@link ResultBatch}) в Prometheus exposition-формат и
  * отправляет его в VictoriaMetrics.
  */
 public class PrometheusResultWriter {
@@ -43,7 +43,7 @@ public class PrometheusResultWriter {
     }
 
     /** Главный метод отправки метрик */
-    public void write(InstanceConfig ic, String reqId, ResultSet rs, String resultExec) throws Exception {
+    public void write(InstanceConfig ic, String reqId, ResultBatch rs, String resultExec) throws Exception {
         if (isConnectError(resultExec)) {
             sendAvailabilityMetric(ic, reqId, 0);
             LogService.printf("[RESP] availability=0 sent to VictoriaMetrics for CI=%s, req=%s%n",
@@ -69,40 +69,32 @@ public class PrometheusResultWriter {
 
     private void sendAvailabilityMetric(InstanceConfig ic, String reqId, int availabilityValue) throws Exception {
         StringBuilder body = new StringBuilder("availability");
-        appendLabels(body, ic, reqId, null);   // reqId сейчас не добавляется
+        appendLabels(body, ic, reqId, null, -1);   // reqId сейчас не добавляется
         body.append(' ').append(availabilityValue).append('\n');
         sendToVictoria(body.toString());
     }
 
     /* ===== обычные метрики ===== */
 
-    private String buildMetricsFromResultSet(InstanceConfig ic, String reqId, ResultSet rs) throws Exception {
+    private String buildMetricsFromResultSet(InstanceConfig ic, String reqId, ResultBatch rs) throws Exception {
         StringBuilder body = new StringBuilder();
-        ResultSetMetaData md = rs.getMetaData();
-        int colCnt = md.getColumnCount();
+        int nameCol  = requireColumn(rs, "metric_name");
+        int valueCol = requireColumn(rs, "metric_value");
 
         // Проверяем наличие колонки timestamp
-        int timestampColumnIndex = -1;
-        for (int i = 1; i <= colCnt; i++) {
-            String colName = md.getColumnLabel(i);
-            if (colName == null || colName.isBlank()) colName = md.getColumnName(i);
-            if (colName != null && colName.toLowerCase(Locale.ROOT).equals("timestamp")) {
-                timestampColumnIndex = i;
-                break;
-            }
-        }
+        int timestampColumnIndex = rs.findColumn("timestamp");
 
-        while (rs.next()) {
-            String metric = safeMetricName(rs.getString("metric_name"));
-            String value  = rs.getString("metric_value");
+        for (int r = 0; r < rs.rowCount(); r++) {
+            String metric = safeMetricName(rs.getString(r, nameCol));
+            String value  = rs.getString(r, valueCol);
 
             body.append(metric);
-            appendLabels(body, ic, reqId, rs); // reqId внутри больше не пишем
+            appendLabels(body, ic, reqId, rs, r); // reqId внутри больше не пишем
             body.append(' ').append(value);
 
             // Добавляем timestamp если есть
-            if (timestampColumnIndex > 0) {
-                Long timestampMs = extractTimestamp(rs, timestampColumnIndex);
+            if (timestampColumnIndex >= 0) {
+                Long timestampMs = extractTimestamp(rs, r, timestampColumnIndex);
                 if (timestampMs != null) {
                     body.append(' ').append(timestampMs);
                 }
@@ -114,19 +106,25 @@ public class PrometheusResultWriter {
         return body.toString();
     }
 
+    private static int requireColumn(ResultBatch rs, String name) throws SQLException {
+        int c = rs.findColumn(name);
+        if (c < 0) throw new SQLException("The column name " + name + " is not valid.");
+        return c;
+    }
+
     /**
-     * Извлекает timestamp из ResultSet и конвертирует в миллисекунды для Prometheus
+     * Timestamp в миллисекундах для Prometheus: колонка datetime, строка
+     * вида "yyyy-MM-dd HH:mm:ss[.f]" или число epoch ms.
      */
-    private Long extractTimestamp(ResultSet rs, int columnIndex) {
+    private Long extractTimestamp(ResultBatch rs, int row, int columnIndex) {
+        Long ms = rs.getTimestampMillis(row, columnIndex);
+        if (ms != null || rs.isNull(row, columnIndex)) return ms;
+        String s = rs.getString(row, columnIndex).trim();
         try {
-            // Пробуем получить как Timestamp (стандартный тип для datetime в JDBC)
-            Timestamp ts = rs.getTimestamp(columnIndex);
-            if (ts != null) {
-                return ts.getTime(); // возвращает миллисекунды с 1970-01-01
-            }
+            return s.chars().allMatch(Character::isDigit) ? Long.parseLong(s) : Timestamp.valueOf(s).getTime();
         } catch (Exception e) {
             LogService.errorf("[VM-WARN] Failed to extract timestamp from column %d: %s%n",
-                    columnIndex, e.getMessage());
+                    columnIndex + 1, e.getMessage());
         }
         return null;
     }
@@ -134,19 +132,15 @@ public class PrometheusResultWriter {
     /* ===== универсальное добавление лейблов (без reqId) ===== */
 
     private void appendLabels(StringBuilder body, InstanceConfig ic, String /*unused*/ reqId,
-                              ResultSet rs) throws Exception {
+                              ResultBatch rs, int row) {
 
         // Стандартный обязательный лейбл ci
         body.append("{ci=\"").append(ic.ci).append('"');
 
-        /* ---- динамические лейблы из ResultSet (если есть) ---- */
+        /* ---- динамические лейблы из результата (если есть) ---- */
         if (rs != null) {
-            ResultSetMetaData md = rs.getMetaData();
-            int colCnt = md.getColumnCount();
-
-            for (int i = 1; i <= colCnt; i++) {
-                String col = md.getColumnLabel(i);
-                if (col == null || col.isBlank()) col = md.getColumnName(i);
+            for (int i = 0; i < rs.columnCount(); i++) {
+                String col = rs.columnName(i);
                 if (col == null) continue;
 
                 String colLower = col.toLowerCase(Locale.ROOT);
@@ -156,7 +150,7 @@ public class PrometheusResultWriter {
                         || colLower.equals("timestamp"))
                     continue;
 
-                String val = rs.getString(i);
+                String val = rs.getString(row, i);
                 if (val == null || val.isEmpty()) continue;
 
                 body.append(',')
@@ -187,14 +181,12 @@ public class PrometheusResultWriter {
 
     /* ===== утилиты ===== */
 
+    /**
+     * Недоступность сервера определяется ServerRequest-ом по SQLState / коду
+     * вендора (см. {@link SqlErrorClassifier}) и помечается префиксом resultExec.
+     */
     private boolean isConnectError(String resultExec) {
-        if (resultExec == null) return false;
-        String err = resultExec.toLowerCase(Locale.ROOT);
-        return err.contains("connect")
-                || err.contains("tcp/ip")
-                || err.contains("unknown host")
-                || err.contains("no such host")
-                || err.contains("login timed out");
+        return SqlErrorClassifier.isAvailabilityFailure(resultExec);
     }
 
     private static String safeMetricName(String raw) {
@@ -241,14 +233,21 @@ public class PrometheusResultWriter {
             return;
         }
 
+        Exception lastError = null;
+        int sent = 0;
         for (URI endpoint : endpoints) {
             try {
                 postOnce(endpoint, body);
+                sent++;
                 LogService.printf("[VM-OK] sent to %s%n", endpoint);
             } catch (Exception ex) {
+                lastError = ex;
                 LogService.errorf("[VM-ERROR] sending to %s failed: %s%n", endpoint, ex.toString());
             }
         }
+        // Отказ всех эндпоинтов — ошибка доставки: с outbox-ом результат отложится,
+        // а writeOnChange/deltaKey не сочтут его записанным
+        if (sent == 0 && lastError != null) throw lastError;
     }
 
     // === NEW: один POST в конкретный эндпоинт ===
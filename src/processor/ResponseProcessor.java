@@ -4,6 +4,7 @@ import model.DbType;
 import model.DestinationConfig;
 import logging.LogService;
 import model.InstanceConfig;
+import scheduler.LatencyProbe;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -12,14 +13,19 @@ import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
 /**
- * Универсальный обработчик результатов. Куда писать определяется
- * {@code destCfg.type}:
+ * Универсальный обработчик результатов одного получателя (несколько
+ * получателей и общая для них дельта/writeOnChange — в {@link ResultFanOut}).
+ * Куда писать определяется {@code destCfg.type}:
  *   - MSSQL      → INSERT через mssql-jdbc
+ *   - MSSQL_BULK → строки результата в таблицу через bulk copy ({@link MssqlBulkWriter})
  *   - OCEANBASE  → INSERT через mysql-connector-j
  *   - PROMETHEUS → отправка в VictoriaMetrics
  *   - LOCALFILE  → файл out_/<ci>_<reqId>.<ext>
+ *                  (или записи в сегментных файлах при LocalFileMode=SEGMENTS, см. {@link SegmentFileWriter})
  *   - MONGO      → заглушка
  *
  * Формат сериализации результата задаётся {@code destCfg.resultFormat}:
@@ -27,27 +33,210 @@ import java.util.Locale;
  *   - JSON — рекомендован для OCEANBASE (нативный JSON-тип)
  *
  * Если ResultFormat пуст и type=OCEANBASE — автоматически берётся JSON.
+ *
+ * При {@code SinkQueueSize > 0} запись асинхронная (см. {@link SinkStage}):
+ * handle() только ставит уже прочитанный результат в очередь.
+ * В конце работы нужно вызвать {@link #close()}, чтобы дождаться доставки.
+ *
+ * MSSQL/OCEANBASE пишутся через {@link JdbcBatchWriter}: соединения с
+ * получателем переиспользуются, при {@code WriteBatchSize > 1} результаты
+ * уходят пачками.
+ *
+ * При {@code OutboxMaxMb > 0} результат, который не удалось доставить из-за
+ * недоступности получателя (или не влезший в очередь при SinkOverflow=SPILL),
+ * откладывается в {@link ResultOutbox} на диске и доставляется позже.
  */
 public class ResponseProcessor {
+
+    /**
+     * Результат записан получателем (не просто поставлен в очередь, пачку или outbox).
+     * Вызывается из потока, который писал, и только для item.ticket() != 0.
+     */
+    interface Delivered {
+        void delivered(SinkStage.Item item);
+    }
+
     private final DestinationConfig destCfg;
-    private final String outDirName;
+    /** Ограничение одновременных записей в получатель (null — без ограничения). */
+    private final Semaphore writePermits;
+    /** Асинхронная доставка (null — запись прямо в потоке опроса, как раньше). */
+    private final SinkStage sinkStage;
+    /** Запись в MSSQL/OCEANBASE-получатель (null — получатель другого типа). */
+    private final JdbcBatchWriter jdbcWriter;
+    /** Bulk copy в таблицы (только для MSSQL_BULK). */
+    private final MssqlBulkWriter bulkWriter;
+    /** LOCALFILE с LocalFileMode=SEGMENTS (null — файл на каждый результат). */
+    private final SegmentFileWriter segmentWriter;
+    /** Отложенная доставка при недоступном получателе (null — OutboxMaxMb=0). */
+    private final ResultOutbox outbox;
+    /** Подтверждение доставки результатов с ticket != 0 (null — никому не нужно). */
+    private volatile Delivered delivered;
+    private volatile String outDirName;
     private static final DateTimeFormatter TS_FMT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmm");
+    private static final DateTimeFormatter CYCLE_TS_FMT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
 
     public ResponseProcessor(DestinationConfig destCfg) {
         this.destCfg = destCfg;
+        this.writePermits = destCfg.maxConcurrentWrites > 0
+                ? new Semaphore(destCfg.maxConcurrentWrites, true)
+                : null;
         this.outDirName = "out_" + LocalDateTime.now().format(TS_FMT);
+        this.outbox = destCfg.outboxMaxMb > 0
+                ? new ResultOutbox(destCfg.outboxDirectory, destCfg.outboxMaxMb, destCfg.outboxReplayPerSec, this::replay)
+                : null;
+        this.sinkStage = destCfg.sinkQueueSize > 0
+                ? new SinkStage(destCfg.sinkQueueSize, destCfg.sinkThreads, destCfg.sinkOverflow,
+                                destCfg.spillDirectory, outbox, this::deliver)
+                : null;
+        Consumer<JdbcBatchWriter.Row> deferRow = outbox == null ? null
+                : r -> outbox.append(r.source(), "destination unavailable");
+        Consumer<JdbcBatchWriter.Row> written = r -> confirm(r.source());
+        this.jdbcWriter = switch (normalizedType()) {
+            case "MSSQL" -> new JdbcBatchWriter(DbType.MSSQL, destCfg, chooseFormatter(false), written, deferRow);
+            case "OCEANBASE", "OB" ->
+                    new JdbcBatchWriter(DbType.OCEANBASE, destCfg, chooseFormatter(false), written, deferRow);
+            default -> null;
+        };
+        this.bulkWriter = "MSSQL_BULK".equals(normalizedType()) ? new MssqlBulkWriter(destCfg) : null;
+        this.segmentWriter = isLocalFile() && "SEGMENTS".equalsIgnoreCase(blankTo(destCfg.localFileMode, "FILES").trim())
+                ? new SegmentFileWriter(destCfg.segmentCount, destCfg.segmentMaxMb, isGzip(destCfg))
+                : null;
+        if (outbox != null) outbox.start();
+    }
+
+    /**
+     * Начало очередного цикла в режиме DAEMON: для LOCALFILE каждый цикл
+     * пишет в свой каталог out_<yyyyMMdd_HHmmss>, чтобы циклы не затирали друг друга.
+     */
+    public void beginCycle() {
+        this.outDirName = "out_" + LocalDateTime.now().format(CYCLE_TS_FMT);
     }
 
     /**
      * Главный метод обработки. rs может быть null (ошибка подключения/выполнения SQL).
+     * ResultSet вычитывается в {@link ResultBatch} одним проходом, дальше
+     * форматтеры и получатели работают только с ним.
      */
     public void handle(InstanceConfig ic, String reqId, ResultSet rs, String resultExec) throws Exception {
-        String type = destCfg.type == null ? "" : destCfg.type.trim().toUpperCase(Locale.ROOT);
-        switch (type) {
+        handle(ic, reqId, ResultBatch.from(rs), resultExec);
+    }
+
+    /** То же для уже прочитанного результата (курсор источника можно закрыть до записи). */
+    public void handle(InstanceConfig ic, String reqId, ResultBatch batch, String resultExec) throws Exception {
+        handle(ic, reqId, batch, resultExec, 0);
+    }
+
+    /** С номером ticket, о доставке которого сообщит {@link Delivered}. */
+    void handle(InstanceConfig ic, String reqId, ResultBatch batch, String resultExec, long ticket) throws Exception {
+        SinkStage.Item item = new SinkStage.Item(ic, reqId, batch, resultExec, outDirName, ticket);
+        if (sinkStage != null) {
+            sinkStage.submit(item);
+            return;
+        }
+        deliver(item);
+    }
+
+    /** Кому сообщать о результатах, которые получатель действительно записал. */
+    void onDelivered(Delivered delivered) {
+        this.delivered = delivered;
+    }
+
+    /** Печатает счётчики асинхронной доставки и outbox за цикл. */
+    public void logStats() {
+        if (sinkStage != null) sinkStage.logStats();
+        if (outbox != null) outbox.logStats();
+    }
+
+    /**
+     * Дожидается доставки всех результатов из очереди и записывает
+     * неполную пачку JDBC-получателя, после чего закрывает его соединения.
+     * Недоставленное из outbox остаётся на диске до следующего запуска.
+     */
+    public void close() {
+        if (outbox != null) outbox.stopReplay();
+        if (sinkStage != null) sinkStage.close();
+        if (jdbcWriter != null) jdbcWriter.close();
+        if (bulkWriter != null) bulkWriter.close();
+        if (segmentWriter != null) segmentWriter.close();
+        if (outbox != null) outbox.close();
+    }
+
+    /** Запись с откладыванием в outbox, если получатель недоступен. */
+    private void deliver(SinkStage.Item item) throws Exception {
+        try {
+            write(item);
+        } catch (Exception e) {
+            if (outbox == null || !ResultOutbox.isUnavailable(e)
+                    || !outbox.append(item, String.valueOf(e.getMessage()))) throw e;
+            return;   // отложен — подтвердит повтор из outbox
+        }
+        if (jdbcWriter == null) confirm(item);   // JDBC подтверждает JdbcBatchWriter, когда пачка записана
+    }
+
+    private void confirm(SinkStage.Item item) {
+        Delivered d = delivered;
+        if (d != null && item != null && item.ticket() != 0) d.delivered(item);
+    }
+
+    private void write(SinkStage.Item item) throws Exception {
+        if (writePermits == null) {
+            timedDispatch(item);
+            return;
+        }
+        writePermits.acquire();
+        try {
+            timedDispatch(item);
+        } finally {
+            writePermits.release();
+        }
+    }
+
+    /**
+     * Повтор из outbox: запись синхронная и бросает при любой ошибке. JDBC-строка
+     * пишется сразу, мимо пачки JdbcBatchWriter — иначе «доставлено» значило бы
+     * «положено в буфер», а ошибка вернула бы строку в outbox в обход паузы повтора.
+     */
+    private void replay(SinkStage.Item item) throws Exception {
+        if (jdbcWriter == null) {
+            write(item);
+            confirm(item);
+            return;
+        }
+        JdbcBatchWriter.Row row = jdbcRow("MSSQL".equals(normalizedType()) ? DbType.MSSQL : DbType.OCEANBASE, item);
+        if (writePermits != null) writePermits.acquire();
+        long t0 = System.nanoTime();
+        try {
+            jdbcWriter.writeNow(row);
+        } finally {
+            LatencyProbe.record(LatencyProbe.Kind.SINK, System.nanoTime() - t0);
+            if (writePermits != null) writePermits.release();
+        }
+        confirm(item);
+    }
+
+    /** Время записи идёт в LatencyProbe — по нему адаптивный пул замечает перегрузку получателя. */
+    private void timedDispatch(SinkStage.Item item) throws Exception {
+        long t0 = System.nanoTime();
+        try {
+            dispatch(item);
+        } finally {
+            LatencyProbe.record(LatencyProbe.Kind.SINK, System.nanoTime() - t0);
+        }
+    }
+
+    private void dispatch(SinkStage.Item item) throws Exception {
+        InstanceConfig ic = item.ic();
+        String reqId = item.reqId();
+        ResultBatch rs = item.rows();
+        String resultExec = item.resultExec();
+        String outDir = item.outDir();
+        switch (normalizedType()) {
             case "MSSQL" ->
-                    saveToJdbc(DbType.MSSQL, ic.ci, reqId, rs, resultExec);
+                    saveToJdbc(DbType.MSSQL, item);
             case "OCEANBASE", "OB" ->
-                    saveToJdbc(DbType.OCEANBASE, ic.ci, reqId, rs, resultExec);
+                    saveToJdbc(DbType.OCEANBASE, item);
+            case "MSSQL_BULK" ->
+                    bulkWriter.write(ic, reqId, rs, resultExec);
             case "PROMETHEUS" -> {
                 PrometheusResultWriter writer = new PrometheusResultWriter(destCfg);
                 writer.write(ic, reqId, rs, resultExec);
@@ -55,12 +244,33 @@ public class ResponseProcessor {
             case "MONGO" ->
                     LogService.printf("[RESP] MONGO write not implemented for %s_%s%n", ic.ci, reqId);
             case "LOCALFILE", "" ->
-                    saveToLocalFile(ic.ci, reqId, rs, resultExec);
+                    saveToLocalFile(outDir, ic.ci, reqId, rs, resultExec);
             default ->
-                    saveToLocalFile(ic.ci, reqId, rs, resultExec);
+                    saveToLocalFile(outDir, ic.ci, reqId, rs, resultExec);
         }
     }
 
+    /** ResultCompression=GZIP? */
+    static boolean isGzip(DestinationConfig cfg) {
+        return cfg.resultCompression != null && cfg.resultCompression.trim().equalsIgnoreCase("GZIP");
+    }
+
+    private String normalizedType() {
+        return destCfg.type == null ? "" : destCfg.type.trim().toUpperCase(Locale.ROOT);
+    }
+
+    /** Куда уходит dispatch по умолчанию: LOCALFILE, пустой или неизвестный тип. */
+    private boolean isLocalFile() {
+        return switch (normalizedType()) {
+            case "MSSQL", "OCEANBASE", "OB", "MSSQL_BULK", "PROMETHEUS", "MONGO" -> false;
+            default -> true;
+        };
+    }
+
+    private static String blankTo(String v, String def) {
+        return v == null || v.isBlank() ? def : v;
+    }
+
     /* ============================================================
        Выбор форматтера: XML / JSON по конфигу,
        JSON по умолчанию для OCEANBASE.
@@ -81,7 +291,23 @@ public class ResponseProcessor {
     /* ============================================================
        Запись результата в JDBC-получатель (MSSQL или OCEANBASE)
        ============================================================ */
-    protected void saveToJdbc(DbType dbType, String ci, String reqId, ResultSet rs, String resultExec) {
+    protected void saveToJdbc(DbType dbType, SinkStage.Item item) {
+        // Соединение, пачка и ошибки SQL — в JdbcBatchWriter
+        jdbcWriter.add(jdbcRow(dbType, item));
+    }
+
+    private JdbcBatchWriter.Row jdbcRow(DbType dbType, SinkStage.Item item) {
+        String ci = item.ic().ci;
+        String reqId = item.reqId();
+        ResultBatch rs = item.rows();
+        String resultExec = item.resultExec();
+        if (destCfg.streamBody || destCfg.bodyChunkSize > 0 || isGzip(destCfg)) {
+            // тело не собирается в строку — форматтер пишет его (сжатым) прямо в драйвер при записи
+            LogService.printf("[DEBUG] %s Call: SQL=%s, ci=%s, reqId=%s, rows=%d, body=stream%n",
+                    dbType, destCfg.mssqlQuery, ci, reqId, rs == null ? 0 : rs.rowCount());
+            return new JdbcBatchWriter.Row(ci, reqId, null, rs, resultExec, item);
+        }
+
         ResultFormatter fmt = chooseFormatter(false);
 
         String body;
@@ -96,60 +322,33 @@ public class ResponseProcessor {
             body = "";
         }
 
-        try {
-            // Явная регистрация драйвера
-            try { Class.forName(dbType.driverClass()); } catch (ClassNotFoundException ignored) {}
-
-            LogService.printf("[DEBUG] %s Call: SQL=%s, ci=%s, reqId=%s, rows=%d, body-len=%d%n",
-                    dbType, destCfg.mssqlQuery, ci, reqId, rowCnt, body.length());
-
-            try (Connection conn = DriverManager.getConnection(destCfg.mssqlConnectionString)) {
-                String sql = destCfg.mssqlQuery == null ? "" : destCfg.mssqlQuery.trim();
-
-                // Эвристика: одно слово (или schema.sp) — считаем именем хранимой процедуры.
-                boolean isSP = sql.matches("(?i)^([\\[]?\\w+[\\]]?\\.)?[\\[]?\\w+[\\]]?$");
-
-                if (isSP) {
-                    try (CallableStatement cs = conn.prepareCall("{call " + sql + " (?, ?, ?, ?)}")) {
-                        cs.setString(1, ci);
-                        cs.setString(2, reqId);
-                        cs.setString(3, body);
-                        cs.setString(4, resultExec);
-                        cs.execute();
-                    }
-                } else {
-                    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                        ps.setString(1, ci);
-                        ps.setString(2, reqId);
-                        ps.setString(3, body);
-                        ps.setString(4, resultExec);
-                        ps.execute();
-                    }
-                }
-                LogService.printf("[RESP] %s_%s -> %s OK (%d rows)%n", ci, reqId, dbType, rowCnt);
-            }
-        } catch (SQLException ex) {
-            LogService.error(String.format("[CI=%s][ReqID=%s] SQL-ERROR: %s", ci, reqId, ex.getMessage()));
-            printSqlErrorChain(ex);
-        } catch (Exception ex) {
-            LogService.error(String.format("[CI=%s][ReqID=%s] ERROR: %s", ci, reqId, ex.getMessage()));
-            ex.printStackTrace();
-        }
+        LogService.printf("[DEBUG] %s Call: SQL=%s, ci=%s, reqId=%s, rows=%d, body-len=%d%n",
+                dbType, destCfg.mssqlQuery, ci, reqId, rowCnt, body.length());
+
+        return new JdbcBatchWriter.Row(ci, reqId, body, null, resultExec, item);
     }
 
     /* ============================================================
        Запись в локальный файл (формат — по resultFormat).
        ============================================================ */
-    private void saveToLocalFile(String ci, String reqId, ResultSet rs, String resultExec)
-            throws SQLException, IOException {
+    private void saveToLocalFile(String outDirName, String ci, String reqId, ResultBatch rs, String resultExec)
+            throws IOException {
+        if (segmentWriter != null) {
+            // XML-декларация в каждой записи сегмента не нужна
+            segmentWriter.write(outDirName, ci, reqId, chooseFormatter(false), rs, resultExec);
+            return;
+        }
 
         Path outDir = Paths.get(outDirName);
         if (!Files.exists(outDir)) Files.createDirectory(outDir);
 
         ResultFormatter fmt = chooseFormatter(true);
-        File outFile = outDir.resolve(ci + "_" + reqId + fmt.fileExtension()).toFile();
+        boolean gzip = isGzip(destCfg);
+        File outFile = outDir.resolve(ci + "_" + reqId + fmt.fileExtension() + (gzip ? ".gz" : "")).toFile();
 
-        try (BufferedWriter w = Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8)) {
+        try (Writer w = gzip
+                ? BodyPipe.openWriter(Files.newOutputStream(outFile.toPath()), true)
+                : Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8)) {
             // Для XML при rs==null оставляем человеко-читаемый комментарий с ошибкой
             if (rs == null && fmt instanceof XmlResultFormatter) {
                 w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
@@ -172,15 +371,4 @@ public class ResponseProcessor {
     private static String xmlEscape(String s) {
         return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
     }
-
-    private static void printSqlErrorChain(SQLException ex) {
-        SQLException next = ex;
-        while (next != null) {
-            LogService.errorln("[SQL-ERROR] code: " + next.getErrorCode() +
-                    ", state: " + next.getSQLState() +
-                    ", message: " + next.getMessage());
-            next = next.getNextException();
-        }
-        ex.printStackTrace();
-    }
 }
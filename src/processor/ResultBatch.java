@@ -0,0 +1,534 @@
+package processor;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Результат запроса в памяти, по колонкам. Заполняется одним проходом по
+ * ResultSet, после чего курсор и соединение с источником можно отпускать,
+ * а форматтеры и получатели работают уже с этим объектом.
+ *
+ * Хранение:
+ *  - целочисленные колонки (TINYINT..BIGINT) — {@code long[]} + битовая маска NULL;
+ *  - REAL/FLOAT/DOUBLE — {@code double[]}, DECIMAL/NUMERIC — {@code BigDecimal[]};
+ *  - символьные (CHAR/VARCHAR/NVARCHAR...) — строки со словарём: {@code int[]} коды
+ *    + массив различных значений (повторяющиеся лейблы вроде database_name/wait_type
+ *    хранятся один раз);
+ *  - дата/время — строка и {@code long[]} epoch ms (для timestamp в Prometheus);
+ *  - прочие — просто строки;
+ *  - BIGINT UNSIGNED (MySQL) в long не помещается — хранится строкой и
+ *    описывается как DECIMAL(20,0).
+ *
+ * Строковое представление значения совпадает с {@code ResultSet.getString},
+ * поэтому вывод XML/JSON не меняется. Индексы строк и колонок — с нуля.
+ */
+public final class ResultBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final String[] names;
+    private final int[] sqlTypes;
+    /** Precision/scale из метаданных (для типизированной записи, см. MssqlBulkWriter). */
+    private final int[] precisions;
+    private final int[] scales;
+    private final Column[] columns;
+    private int rowCount;
+
+    private ResultBatch(String[] names, int[] sqlTypes, int[] precisions, int[] scales, Column[] columns) {
+        this.names = names;
+        this.sqlTypes = sqlTypes;
+        this.precisions = precisions;
+        this.scales = scales;
+        this.columns = columns;
+    }
+
+    /** Вычитывает ResultSet целиком (null → null). ResultSet не закрывается. */
+    public static ResultBatch from(ResultSet rs) throws SQLException {
+        if (rs == null) return null;
+        ResultSetMetaData md = rs.getMetaData();
+        int cols = md.getColumnCount();
+        String[] names = new String[cols];
+        int[] types = new int[cols];
+        int[] precisions = new int[cols];
+        int[] scales = new int[cols];
+        Column[] columns = new Column[cols];
+        for (int c = 0; c < cols; c++) {
+            String name = md.getColumnLabel(c + 1);
+            if (name == null || name.isEmpty()) name = md.getColumnName(c + 1);
+            names[c] = name;
+            types[c] = md.getColumnType(c + 1);
+            precisions[c] = md.getPrecision(c + 1);
+            scales[c] = md.getScale(c + 1);
+            if (types[c] == Types.BIGINT && !md.isSigned(c + 1)) {
+                // значения выше Long.MAX_VALUE: getLong бросил бы исключение
+                types[c] = Types.DECIMAL;
+                precisions[c] = 20;
+                scales[c] = 0;
+            }
+            columns[c] = newColumn(types[c]);
+        }
+
+        ResultBatch b = new ResultBatch(names, types, precisions, scales, columns);
+        while (rs.next()) {
+            for (int c = 0; c < cols; c++) {
+                columns[c].read(rs, c + 1, b.rowCount);
+            }
+            b.rowCount++;
+        }
+        for (Column col : columns) col.trim(b.rowCount);
+        return b;
+    }
+
+    /**
+     * Пустой результат с колонками src и ещё одной строковой колонкой {@code lead}
+     * в начале (для дельты: операция над строкой). Строки — через appendRow/appendKeyRow.
+     */
+    static ResultBatch withLeadColumn(ResultBatch src, String lead) {
+        int cols = src.names.length + 1;
+        String[] names = new String[cols];
+        int[] types = new int[cols];
+        int[] precisions = new int[cols];
+        int[] scales = new int[cols];
+        Column[] columns = new Column[cols];
+        names[0] = lead;
+        types[0] = Types.VARCHAR;
+        columns[0] = new DictColumn();
+        for (int c = 1; c < cols; c++) {
+            names[c] = src.names[c - 1];
+            types[c] = src.sqlTypes[c - 1];
+            precisions[c] = src.columnPrecision(c - 1);
+            scales[c] = src.columnScale(c - 1);
+            columns[c] = newColumn(types[c]);
+        }
+        return new ResultBatch(names, types, precisions, scales, columns);
+    }
+
+    private static Column newColumn(int sqlType) {
+        return switch (sqlType) {
+            case Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT -> new LongColumn();
+            case Types.REAL -> new DoubleColumn(true);
+            case Types.FLOAT, Types.DOUBLE -> new DoubleColumn(false);
+            case Types.DECIMAL, Types.NUMERIC -> new DecimalColumn();
+            case Types.DATE, Types.TIMESTAMP, Types.TIMESTAMP_WITH_TIMEZONE -> new TimestampColumn();
+            case Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR,
+                 Types.NCHAR, Types.NVARCHAR, Types.LONGNVARCHAR -> new DictColumn();
+            default -> new StringColumn();
+        };
+    }
+
+    /** Добавляет строку: lead + значения строки srcRow из src (те же колонки, что в withLeadColumn). */
+    void appendRow(String lead, ResultBatch src, int srcRow) {
+        ((DictColumn) columns[0]).put(rowCount, lead);
+        for (int c = 1; c < columns.length; c++) {
+            columns[c].copy(src.columns[c - 1], srcRow, rowCount);
+        }
+        rowCount++;
+    }
+
+    /** Добавляет строку: lead + значения из строк (null — NULL), например ключ удалённой строки. */
+    void appendValues(String lead, String[] values) {
+        ((DictColumn) columns[0]).put(rowCount, lead);
+        for (int c = 1; c < columns.length; c++) {
+            columns[c].putString(rowCount, values[c - 1]);
+        }
+        rowCount++;
+    }
+
+    /** Завершает заполнение (обрезает массивы). */
+    void seal() {
+        for (Column col : columns) col.trim(rowCount);
+    }
+
+    public int rowCount()    { return rowCount; }
+    public int columnCount() { return names.length; }
+
+    /** Имя колонки (label, а если он пуст — name). */
+    public String columnName(int col) { return names[col]; }
+
+    /** java.sql.Types колонки. */
+    public int columnType(int col) { return sqlTypes[col]; }
+
+    /** Precision колонки (для строк — длина); 0 — неизвестно. */
+    public int columnPrecision(int col) { return precisions == null ? 0 : precisions[col]; }
+
+    /** Scale колонки (DECIMAL/NUMERIC); 0 — неизвестно. */
+    public int columnScale(int col) { return scales == null ? 0 : scales[col]; }
+
+    /** Индекс колонки по имени без учёта регистра; -1 — нет такой. */
+    public int findColumn(String name) {
+        for (int c = 0; c < names.length; c++) {
+            if (names[c] != null && names[c].equalsIgnoreCase(name)) return c;
+        }
+        return -1;
+    }
+
+    public boolean isNull(int row, int col) {
+        return columns[col].isNull(row);
+    }
+
+    /** Значение как строка (то же, что вернул бы ResultSet.getString); null для NULL. */
+    public String getString(int row, int col) {
+        return columns[col].getString(row);
+    }
+
+    /** Для целочисленных колонок — значение без упаковки в строку. */
+    public long getLong(int row, int col) {
+        if (columns[col] instanceof LongColumn lc) return lc.values[row];
+        String s = getString(row, col);
+        return s == null ? 0 : Long.parseLong(s.trim());
+    }
+
+    /** Для REAL/FLOAT/DOUBLE и целых — значение без разбора строки; NULL — 0. */
+    public double getDouble(int row, int col) {
+        if (columns[col] instanceof DoubleColumn dc) return dc.values[row];
+        if (columns[col] instanceof LongColumn lc) return lc.values[row];
+        String s = getString(row, col);
+        return s == null ? 0 : Double.parseDouble(s.trim());
+    }
+
+    /** Для DECIMAL/NUMERIC — значение без разбора строки; null для NULL. */
+    public BigDecimal getBigDecimal(int row, int col) {
+        if (columns[col] instanceof DecimalColumn dc) return dc.values[row];
+        String s = getString(row, col);
+        return s == null ? null : new BigDecimal(s.trim());
+    }
+
+    /** BIT/BOOLEAN: "1"/"true" — true. */
+    public boolean getBoolean(int row, int col) {
+        String s = getString(row, col);
+        return s != null && (s.equals("1") || s.equalsIgnoreCase("true"));
+    }
+
+    /** Epoch ms для колонок даты/времени; null — NULL или колонка другого типа. */
+    public Long getTimestampMillis(int row, int col) {
+        if (columns[col] instanceof TimestampColumn tc && !tc.isNull(row)) return tc.millis[row];
+        return null;
+    }
+
+    /* ===================== колонки ===================== */
+
+    private abstract static class Column implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final BitSet nulls = new BitSet();
+
+        abstract void read(ResultSet rs, int jdbcIndex, int row) throws SQLException;
+        abstract String getString(int row);
+        abstract void trim(int rows);
+        /** Значение строки srcRow колонки того же вида. */
+        abstract void copy(Column src, int srcRow, int row);
+        /** Значение из строкового представления (null — NULL). */
+        abstract void putString(int row, String v);
+
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+    }
+
+    private static final class LongColumn extends Column {
+        private static final long serialVersionUID = 1L;
+
+        long[] values = new long[INITIAL_CAPACITY];
+
+        @Override
+        void read(ResultSet rs, int jdbcIndex, int row) throws SQLException {
+            if (row == values.length) values = Arrays.copyOf(values, row * 2);
+            values[row] = rs.getLong(jdbcIndex);
+            if (rs.wasNull()) nulls.set(row);
+        }
+
+        @Override
+        String getString(int row) {
+            return isNull(row) ? null : Long.toString(values[row]);
+        }
+
+        @Override
+        void copy(Column src, int srcRow, int row) {
+            LongColumn lc = (LongColumn) src;
+            set(row, lc.values[srcRow], lc.isNull(srcRow));
+        }
+
+        @Override
+        void putString(int row, String v) {
+            long x = 0;
+            boolean isNull = v == null;
+            if (!isNull) {
+                try {
+                    x = Long.parseLong(v.trim());
+                } catch (NumberFormatException e) {
+                    isNull = true;
+                }
+            }
+            set(row, x, isNull);
+        }
+
+        private void set(int row, long v, boolean isNull) {
+            if (row == values.length) values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, row * 2));
+            values[row] = v;
+            if (isNull) nulls.set(row);
+        }
+
+        @Override
+        void trim(int rows) {
+            values = Arrays.copyOf(values, rows);
+        }
+    }
+
+    /** REAL/FLOAT/DOUBLE. REAL печатается как float — без хвоста вроде 0.10000000149011612. */
+    private static final class DoubleColumn extends Column {
+        private static final long serialVersionUID = 1L;
+
+        final boolean single;
+        double[] values = new double[INITIAL_CAPACITY];
+
+        DoubleColumn(boolean single) {
+            this.single = single;
+        }
+
+        @Override
+        void read(ResultSet rs, int jdbcIndex, int row) throws SQLException {
+            double v = rs.getDouble(jdbcIndex);
+            set(row, v, rs.wasNull());
+        }
+
+        @Override
+        String getString(int row) {
+            if (isNull(row)) return null;
+            return single ? Float.toString((float) values[row]) : Double.toString(values[row]);
+        }
+
+        @Override
+        void copy(Column src, int srcRow, int row) {
+            DoubleColumn dc = (DoubleColumn) src;
+            set(row, dc.values[srcRow], dc.isNull(srcRow));
+        }
+
+        @Override
+        void putString(int row, String v) {
+            double x = 0;
+            boolean isNull = v == null;
+            if (!isNull) {
+                try {
+                    x = Double.parseDouble(v.trim());
+                } catch (NumberFormatException e) {
+                    isNull = true;
+                }
+            }
+            set(row, x, isNull);
+        }
+
+        private void set(int row, double v, boolean isNull) {
+            if (row == values.length) values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, row * 2));
+            values[row] = v;
+            if (isNull) nulls.set(row);
+        }
+
+        @Override
+        void trim(int rows) {
+            values = Arrays.copyOf(values, rows);
+        }
+    }
+
+    /** DECIMAL/NUMERIC — точные значения, без словаря (метрики почти не повторяются). */
+    private static final class DecimalColumn extends Column {
+        private static final long serialVersionUID = 1L;
+
+        BigDecimal[] values = new BigDecimal[INITIAL_CAPACITY];
+
+        @Override
+        void read(ResultSet rs, int jdbcIndex, int row) throws SQLException {
+            set(row, rs.getBigDecimal(jdbcIndex));
+        }
+
+        @Override
+        String getString(int row) {
+            BigDecimal v = values[row];
+            return v == null ? null : v.toPlainString();
+        }
+
+        @Override
+        void copy(Column src, int srcRow, int row) {
+            set(row, ((DecimalColumn) src).values[srcRow]);
+        }
+
+        @Override
+        void putString(int row, String v) {
+            BigDecimal x = null;
+            if (v != null) {
+                try {
+                    x = new BigDecimal(v.trim());
+                } catch (NumberFormatException ignored) {
+                    // не число — NULL
+                }
+            }
+            set(row, x);
+        }
+
+        private void set(int row, BigDecimal v) {
+            if (row == values.length) values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, row * 2));
+            values[row] = v;
+            if (v == null) nulls.set(row);
+        }
+
+        @Override
+        void trim(int rows) {
+            values = Arrays.copyOf(values, rows);
+        }
+    }
+
+    /** Строки без словаря — типы, для которых повторы не характерны (BIT, TIME, двоичные и т.п.). */
+    private static class StringColumn extends Column {
+        private static final long serialVersionUID = 1L;
+
+        String[] values = new String[INITIAL_CAPACITY];
+
+        @Override
+        void read(ResultSet rs, int jdbcIndex, int row) throws SQLException {
+            put(row, rs.getString(jdbcIndex));
+        }
+
+        @Override
+        void copy(Column src, int srcRow, int row) {
+            put(row, src.getString(srcRow));
+        }
+
+        @Override
+        void putString(int row, String v) {
+            put(row, v);
+        }
+
+        final void put(int row, String v) {
+            if (row == values.length) values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, row * 2));
+            values[row] = v;
+            if (v == null) nulls.set(row);
+        }
+
+        @Override
+        String getString(int row) {
+            return values[row];
+        }
+
+        @Override
+        void trim(int rows) {
+            values = Arrays.copyOf(values, rows);
+        }
+    }
+
+    /** Символьные типы со словарём: код -1 — NULL. */
+    private static final class DictColumn extends Column {
+        private static final long serialVersionUID = 1L;
+
+        int[] codes = new int[INITIAL_CAPACITY];
+        String[] dict = new String[INITIAL_CAPACITY];
+        int dictSize;
+        /** Нужен только при заполнении; после trim — null. */
+        transient Map<String, Integer> index = new HashMap<>();
+
+        @Override
+        void read(ResultSet rs, int jdbcIndex, int row) throws SQLException {
+            put(row, rs.getString(jdbcIndex));
+        }
+
+        @Override
+        void copy(Column src, int srcRow, int row) {
+            put(row, src.getString(srcRow));
+        }
+
+        @Override
+        void putString(int row, String v) {
+            put(row, v);
+        }
+
+        void put(int row, String v) {
+            if (row == codes.length) codes = Arrays.copyOf(codes, Math.max(INITIAL_CAPACITY, row * 2));
+            if (v == null) {
+                codes[row] = -1;
+                nulls.set(row);
+                return;
+            }
+            Integer code = index.get(v);
+            if (code == null) {
+                if (dictSize == dict.length) dict = Arrays.copyOf(dict, dictSize * 2);
+                code = dictSize;
+                dict[dictSize++] = v;
+                index.put(v, code);
+            }
+            codes[row] = code;
+        }
+
+        @Override
+        String getString(int row) {
+            int code = codes[row];
+            return code < 0 ? null : dict[code];
+        }
+
+        @Override
+        void trim(int rows) {
+            codes = Arrays.copyOf(codes, rows);
+            dict = Arrays.copyOf(dict, dictSize);
+            index = null;
+        }
+    }
+
+    private static final class TimestampColumn extends StringColumn {
+        private static final long serialVersionUID = 1L;
+
+        long[] millis = new long[INITIAL_CAPACITY];
+
+        @Override
+        void read(ResultSet rs, int jdbcIndex, int row) throws SQLException {
+            if (row == millis.length) millis = Arrays.copyOf(millis, row * 2);
+            Timestamp ts = rs.getTimestamp(jdbcIndex);
+            millis[row] = ts == null ? 0 : ts.getTime();
+            put(row, ts == null ? null : rs.getString(jdbcIndex));
+        }
+
+        @Override
+        void copy(Column src, int srcRow, int row) {
+            TimestampColumn tc = (TimestampColumn) src;
+            setMillis(row, tc.millis[srcRow]);
+            put(row, tc.getString(srcRow));
+        }
+
+        @Override
+        void putString(int row, String v) {
+            long ms = 0;
+            if (v != null) {
+                try {
+                    ms = Timestamp.valueOf(v.trim()).getTime();
+                } catch (IllegalArgumentException ignored) {
+                    // дата без времени или с зоной — epoch ms неизвестен
+                }
+            }
+            setMillis(row, ms);
+            put(row, v);
+        }
+
+        private void setMillis(int row, long ms) {
+            if (row == millis.length) millis = Arrays.copyOf(millis, Math.max(INITIAL_CAPACITY, row * 2));
+            millis[row] = ms;
+        }
+
+        @Override
+        void trim(int rows) {
+            super.trim(rows);
+            millis = Arrays.copyOf(millis, rows);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "ResultBatch[%d rows x %d cols]", rowCount, names.length);
+    }
+}
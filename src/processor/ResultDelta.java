@@ -0,0 +1,221 @@
+package processor;
+
+import logging.LogService;
+import model.QueryRequest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Построчная дельта для запросов с {@code deltaKey="col1,col2"}: вместо
+ * полного результата записываются только строки, которые появились,
+ * изменились или пропали с прошлого раза для той же пары (ci, reqId).
+ *
+ * Дельта — обычный {@link ResultBatch} с дополнительной первой колонкой
+ * {@code delta_op} ({@code added} / {@code changed} / {@code removed}),
+ * поэтому её пишет любой получатель и форматтер (XML, JSON, bulk copy).
+ * У удалённых строк заполнены только ключевые колонки.
+ *
+ * Прошлый снимок хранится компактно: ключ строки + 64-битный хэш её
+ * значений, в файле {@code <StateDirectory>/snapshots/<ci>_<reqId>.snap}.
+ * Первый результат (снимка ещё нет) целиком уходит как {@code added}.
+ * Ошибка (результата нет) проходит как есть и снимок не трогает.
+ *
+ * Новый снимок сохраняется только после доставки дельты ({@link Applied#commit}):
+ * если запись не удалась, следующая дельта считается от прежнего снимка
+ * и эти изменения повторит, а не потеряет.
+ */
+public final class ResultDelta {
+
+    public static final String OP_COLUMN = "delta_op";
+
+    private static final int SNAPSHOT_VERSION = 1;
+    /** Разделитель значений в ключе строки. */
+    private static final char KEY_SEP = '\u0001';
+    /** Маркер NULL в ключе (чтобы NULL и "" различались). */
+    private static final String NULL_MARK = "\u0000";
+
+    /** id result set-а → ключевые колонки. */
+    private final Map<String, String[]> keysById = new HashMap<>();
+    private final Path dir;
+    /** Уже залоговано «нет ключевой колонки» для этих reqId. */
+    private final Set<String> warned = ConcurrentHashMap.newKeySet();
+
+    private ResultDelta(List<QueryRequest> queries, Path dir) {
+        this.dir = dir;
+        for (QueryRequest qr : queries) {
+            String[] keys = parseKeys(qr.deltaKey());
+            if (keys.length == 0) continue;
+            for (int k = 0; k < qr.expectedResultSets(); k++) {
+                keysById.put(qr.resultSetId(k), keys);
+            }
+        }
+    }
+
+    /** Дельта для запросов с deltaKey; снимки — в каталоге dir. */
+    public static ResultDelta create(List<QueryRequest> queries, Path dir) {
+        return new ResultDelta(queries, dir);
+    }
+
+    public boolean isEnabled() {
+        return !keysById.isEmpty();
+    }
+
+    /**
+     * Результат apply: rows — что писать; commit — сохранить новый снимок,
+     * когда rows доставлены (null — снимок не меняется).
+     */
+    record Applied(ResultBatch rows, Runnable commit) {}
+
+    /** Дельта результата к прошлому сохранённому снимку; без deltaKey — rs как есть. */
+    Applied apply(String ci, String reqId, ResultBatch rs) {
+        String[] keys = keysById.get(reqId);
+        if (keys == null || rs == null) return new Applied(rs, null);
+
+        int[] keyCols = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keyCols[i] = rs.findColumn(keys[i]);
+            if (keyCols[i] < 0) {
+                if (warned.add(reqId)) {
+                    LogService.errorf("[DELTA] %s: no key column '%s' in result, writing full result%n",
+                            reqId, keys[i]);
+                }
+                return new Applied(rs, null);
+            }
+        }
+
+        Path file = dir.resolve(sanitize(ci) + "_" + sanitize(reqId) + ".snap");
+        Map<String, Long> prev = readSnapshot(file);
+        Map<String, Long> next = new HashMap<>(rs.rowCount() * 2);
+
+        ResultBatch delta = ResultBatch.withLeadColumn(rs, OP_COLUMN);
+        int added = 0, changed = 0, removed = 0;
+        for (int r = 0; r < rs.rowCount(); r++) {
+            String key = rowKey(rs, r, keyCols);
+            long hash = rowHash(rs, r);
+            if (next.put(key, hash) != null) continue;   // повтор ключа — берём первую строку
+            Long old = prev == null ? null : prev.remove(key);
+            if (old == null) {
+                delta.appendRow("added", rs, r);
+                added++;
+            } else if (old != hash) {
+                delta.appendRow("changed", rs, r);
+                changed++;
+            }
+        }
+        if (prev != null) {
+            for (String key : prev.keySet()) {
+                delta.appendValues("removed", keyValues(key, keyCols, rs.columnCount()));
+                removed++;
+            }
+        }
+        delta.seal();
+        LogService.printf("[DELTA] %s_%s: %d rows -> +%d ~%d -%d%n",
+                ci, reqId, rs.rowCount(), added, changed, removed);
+        return new Applied(delta, () -> writeSnapshot(file, next));
+    }
+
+    /* ===================== строки ===================== */
+
+    private static String rowKey(ResultBatch rs, int row, int[] keyCols) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < keyCols.length; i++) {
+            if (i > 0) sb.append(KEY_SEP);
+            String v = rs.getString(row, keyCols[i]);
+            sb.append(v == null ? NULL_MARK : v);
+        }
+        return sb.toString();
+    }
+
+    /** Значения строки «removed»: ключевые колонки из ключа, остальные NULL. */
+    private static String[] keyValues(String key, int[] keyCols, int columnCount) {
+        String[] values = new String[columnCount];
+        String[] parts = key.split(String.valueOf(KEY_SEP), -1);
+        for (int i = 0; i < keyCols.length && i < parts.length; i++) {
+            values[keyCols[i]] = NULL_MARK.equals(parts[i]) ? null : parts[i];
+        }
+        return values;
+    }
+
+    /** FNV-1a 64 по всем значениям строки (NULL отличается от пустой строки). */
+    private static long rowHash(ResultBatch rs, int row) {
+        long h = 0xcbf29ce484222325L;
+        for (int c = 0; c < rs.columnCount(); c++) {
+            String v = rs.getString(row, c);
+            if (v == null) {
+                h = (h ^ 0xFF) * 0x100000001b3L;
+            } else {
+                for (int i = 0; i < v.length(); i++) {
+                    h = (h ^ v.charAt(i)) * 0x100000001b3L;
+                }
+            }
+            h = (h ^ KEY_SEP) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static String[] parseKeys(String s) {
+        if (s == null || s.isBlank()) return new String[0];
+        return Arrays.stream(s.split(",")).map(String::trim).filter(k -> !k.isEmpty()).toArray(String[]::new);
+    }
+
+    private static String sanitize(String s) {
+        return s.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    /* ===================== снимки ===================== */
+
+    /** null — снимка нет (первый раз) или он не читается. */
+    private static Map<String, Long> readSnapshot(Path file) {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_VERSION) return null;
+            int n = in.readInt();
+            Map<String, Long> map = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                String key = in.readUTF();
+                map.put(key, in.readLong());
+            }
+            return map;
+        } catch (IOException e) {
+            LogService.errorf("[DELTA] can't read snapshot %s: %s (writing full result)%n", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeSnapshot(Path file, Map<String, Long> rows) {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                Set<String> tooLong = new HashSet<>();
+                for (String k : rows.keySet()) {
+                    if (k.length() > 16_000) tooLong.add(k);   // writeUTF: не больше 64 КБ
+                }
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(rows.size() - tooLong.size());
+                for (Map.Entry<String, Long> e : rows.entrySet()) {
+                    if (tooLong.contains(e.getKey())) continue;
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LogService.errorf("[DELTA] can't write snapshot %s: %s%n", file, e.getMessage());
+        }
+    }
+}
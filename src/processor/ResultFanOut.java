@@ -0,0 +1,212 @@
+package processor;
+
+import logging.LogService;
+import model.DestinationConfig;
+import model.InstanceConfig;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Раздача результатов по нескольким получателям ({@code <ResultsDestination>}
+ * в конфиге может быть несколько). ResultSet вычитывается в {@link ResultBatch}
+ * один раз, и этот же (неизменяемый) batch уходит в {@link ResponseProcessor}
+ * каждого получателя, которому он положен. Так один прогон коллектора пишет,
+ * например, и в MSSQL, и в VictoriaMetrics, не опрашивая серверы дважды.
+ *
+ * Получатель с {@code RequestIds="PERF,WAIT_*"} получает только эти запросы
+ * ({@code *} в конце — любой хвост, в том числе {@code _2} у второго result set-а);
+ * пусто — все запросы.
+ *
+ * Если получателей у результата несколько, они пишут параллельно (потоки
+ * «fanout-N»), handle() возвращается, когда записали все. Ошибка одного
+ * получателя остальным не мешает и только логируется — иначе в «здоровые»
+ * получатели ушла бы ещё и строка с ошибкой. С единственным получателем
+ * ошибка пробрасывается, как раньше.
+ *
+ * Дельта (deltaKey) и writeOnChange считаются здесь, один раз на результат:
+ * их состояние общее для всех получателей. Новое состояние запоминается,
+ * только когда результат записали все его получатели (см.
+ * {@link ResponseProcessor.Delivered}); не записался — следующий результат
+ * сравнивается с прежним состоянием, и изменения не теряются.
+ */
+public final class ResultFanOut {
+
+    private record Route(String label, ResponseProcessor sink, String[] requestIds) {
+        boolean accepts(String reqId) {
+            if (requestIds.length == 0) return true;
+            for (String p : requestIds) {
+                if (p.endsWith("*") ? reqId.startsWith(p.substring(0, p.length() - 1)) : p.equals(reqId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Ждёт подтверждения от remaining получателей, после чего выполняется commit. */
+    private record Pending(long ticket, AtomicInteger remaining, Runnable commit) {}
+
+    private static final AtomicInteger SEQ = new AtomicInteger();
+    /** Номера подтверждений; начало от времени — не совпадут с номерами прошлого запуска в outbox. */
+    private static final AtomicLong TICKETS = new AtomicLong(System.currentTimeMillis() << 20);
+    private static final ExecutorService TEE = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fanout-" + SEQ.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<Route> routes = new ArrayList<>();
+    /** "ci|reqId" → последний результат, чьё состояние ждёт доставки. */
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    /** Построчная дельта для запросов с deltaKey; null — результаты целиком. */
+    private volatile ResultDelta delta;
+    /** Пропуск неизменившихся результатов (writeOnChange); null — пишется всё. */
+    private volatile ChangeDetector changes;
+
+    private ResultFanOut(List<DestinationConfig> destinations) {
+        for (int i = 0; i < destinations.size(); i++) {
+            DestinationConfig dc = destinations.get(i);
+            String type = dc.type == null || dc.type.isBlank() ? "LOCALFILE" : dc.type.trim().toUpperCase(Locale.ROOT);
+            ResponseProcessor sink = new ResponseProcessor(dc);
+            sink.onDelivered(this::delivered);
+            routes.add(new Route("#" + (i + 1) + " " + type, sink, parseIds(dc.requestIds)));
+        }
+        if (routes.size() > 1 || routes.stream().anyMatch(r -> r.requestIds().length > 0)) {
+            for (Route r : routes) {
+                LogService.printf("[FANOUT] destination %s: %s%n", r.label(),
+                        r.requestIds().length == 0 ? "all requests" : String.join(",", r.requestIds()));
+            }
+        }
+    }
+
+    /** Раздача по получателям из конфига (порядок — как в файле). */
+    public static ResultFanOut create(List<DestinationConfig> destinations) {
+        return new ResultFanOut(destinations);
+    }
+
+    /** Начало цикла DAEMON — у каждого получателя (каталог out_* для LOCALFILE). */
+    public void beginCycle() {
+        for (Route r : routes) r.sink().beginCycle();
+    }
+
+    /** rs может быть null (ошибка подключения/выполнения SQL). Курсор читается один раз на всех. */
+    public void handle(InstanceConfig ic, String reqId, ResultSet rs, String resultExec) throws Exception {
+        handle(ic, reqId, ResultBatch.from(rs), resultExec);
+    }
+
+    public void handle(InstanceConfig ic, String reqId, ResultBatch batch, String resultExec) throws Exception {
+        List<Route> targets = new ArrayList<>(routes.size());
+        for (Route r : routes) {
+            if (r.accepts(reqId)) targets.add(r);
+        }
+        if (targets.isEmpty()) return;
+
+        // writeOnChange — по полному результату и до дельты: пропуск после apply
+        // потерял бы её commit, и снимок не сдвинулся бы
+        Runnable commit = null;
+        ChangeDetector cd = changes;
+        if (cd != null) {
+            ChangeDetector.Decision d = cd.decide(ic.ci, reqId, batch);
+            if (!d.write()) return;
+            if (d.hash() != null) commit = () -> cd.written(ic.ci, reqId, d.hash());
+        }
+        ResultDelta rd = delta;
+        if (rd != null) {
+            ResultDelta.Applied applied = rd.apply(ic.ci, reqId, batch);
+            batch = applied.rows();
+            commit = andThen(commit, applied.commit());
+        }
+        long ticket = 0;
+        if (commit != null) {
+            ticket = TICKETS.incrementAndGet();
+            pending.put(ic.ci + "|" + reqId, new Pending(ticket, new AtomicInteger(targets.size()), commit));
+        }
+
+        if (targets.size() == 1) {
+            targets.get(0).sink().handle(ic, reqId, batch, resultExec, ticket);
+            return;
+        }
+
+        ResultBatch rows = batch;
+        long t = ticket;
+        List<CompletableFuture<Void>> others = new ArrayList<>(targets.size() - 1);
+        for (Route r : targets.subList(1, targets.size())) {
+            others.add(CompletableFuture.runAsync(() -> deliver(r, ic, reqId, rows, resultExec, t), TEE));
+        }
+        deliver(targets.get(0), ic, reqId, rows, resultExec, ticket);   // первый — в текущем потоке
+        for (CompletableFuture<Void> f : others) {
+            try {
+                f.join();
+            } catch (CompletionException ignored) {
+                // deliver сам логирует и не бросает
+            }
+        }
+    }
+
+    /** Включает запись только изменившихся результатов для запросов с writeOnChange. */
+    public void setChangeDetector(ChangeDetector changes) {
+        this.changes = changes != null && changes.isEnabled() ? changes : null;
+    }
+
+    /** Включает построчную дельту для запросов с deltaKey. */
+    public void setResultDelta(ResultDelta delta) {
+        this.delta = delta != null && delta.isEnabled() ? delta : null;
+    }
+
+    /** Печатает счётчики всех получателей и пропусков writeOnChange за цикл. */
+    public void logStats() {
+        for (Route r : routes) r.sink().logStats();
+        ChangeDetector cd = changes;
+        if (cd != null) cd.logStats();
+    }
+
+    /** Дожидается доставки у всех получателей и закрывает их. */
+    public void close() {
+        for (Route r : routes) r.sink().close();
+    }
+
+    /**
+     * Получатель записал результат. Более новый результат того же (ci, reqId)
+     * вытесняет старое ожидание — его подтверждение уже ничего не меняет.
+     */
+    private void delivered(SinkStage.Item item) {
+        String key = item.ic().ci + "|" + item.reqId();
+        Pending p = pending.get(key);
+        if (p == null || p.ticket() != item.ticket()) return;
+        if (p.remaining().decrementAndGet() == 0 && pending.remove(key, p)) p.commit().run();
+    }
+
+    private static void deliver(Route r, InstanceConfig ic, String reqId, ResultBatch rows, String resultExec,
+                                long ticket) {
+        try {
+            r.sink().handle(ic, reqId, rows, resultExec, ticket);
+        } catch (Exception e) {
+            LogService.errorf("[FANOUT] %s_%s -> destination %s failed: %s%n", ic.ci, reqId, r.label(), e.getMessage());
+        }
+    }
+
+    private static Runnable andThen(Runnable first, Runnable second) {
+        if (second == null) return first;
+        return first == null ? second : () -> {
+            first.run();
+            second.run();
+        };
+    }
+
+    private static String[] parseIds(String s) {
+        if (s == null || s.isBlank()) return new String[0];
+        return Arrays.stream(s.split(",")).map(String::trim).filter(p -> !p.isEmpty()).toArray(String[]::new);
+    }
+}
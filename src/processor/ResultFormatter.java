@@ -2,12 +2,10 @@ package processor;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 
 /**
- * Сериализатор ResultSet в текст. Используется ResponseProcessor для записи
- * результата в файл/БД. Имеет две реализации: XML и JSON.
+ * Сериализатор результата ({@link ResultBatch}) в текст. Используется
+ * ResponseProcessor для записи результата в файл/БД. Имеет две реализации: XML и JSON.
  */
 public interface ResultFormatter {
 
@@ -18,12 +16,12 @@ public interface ResultFormatter {
      * Стримит результат в Writer (используется при сохранении в файл).
      * @return количество обработанных строк (rows)
      */
-    int streamTo(String ci, String reqId, ResultSet rs, Writer w) throws SQLException, IOException;
+    int streamTo(String ci, String reqId, ResultBatch rs, Writer w) throws IOException;
 
     /**
      * Полностью формирует тело в строке (используется для INSERT в БД).
      */
-    FormatResult format(String ci, String reqId, ResultSet rs) throws SQLException;
+    FormatResult format(String ci, String reqId, ResultBatch rs);
 
     /** Расширение файла для данного формата (например, ".xml" / ".json"). */
     String fileExtension();
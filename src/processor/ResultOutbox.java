@@ -0,0 +1,411 @@
+package processor;
+
+import logging.LogService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Долговременный outbox недоставленных результатов ({@code OutboxMaxMb > 0}).
+ *
+ * Если получатель недоступен (нет соединения, таймаут, все эндпоинты
+ * VictoriaMetrics отказали) или не успевает (SinkOverflow=SPILL), результат
+ * не теряется и не копится в куче, а дописывается в файл на диске. Поток
+ * «outbox-replay» доставляет записи по порядку, не быстрее
+ * {@code OutboxReplayPerSec} в секунду; пока получатель лежит — ждёт с
+ * нарастающей паузой (до минуты) и пробует снова самую старую запись.
+ *
+ * Файлы {@code outbox-<seq>.seg} в {@code OutboxDirectory} отображаются в
+ * память (FileChannel.map) и только дописываются. Запись:
+ * <pre>
+ *   int   длина данных (0 — дальше записей нет)
+ *   byte  0 — ждёт доставки, 1 — доставлена
+ *   byte[] сериализованный {@link SinkStage.Item}
+ * </pre>
+ * Длина пишется последней, поэтому запись, оборванная падением процесса,
+ * не видна. Сегмент, где всё доставлено, удаляется. Суммарный размер
+ * ограничен {@code OutboxMaxMb}: не хватает места — удаляется самый старый
+ * сегмент вместе с недоставленным (в лог {@code [OUTBOX] evicted}).
+ * Outbox переживает перезапуск: при старте недоставленное подхватывается.
+ * Доставка «хотя бы один раз» — после падения запись может уйти повторно.
+ */
+final class ResultOutbox {
+
+    /** Куда outbox повторяет доставку (ResponseProcessor без fallback-а в outbox). */
+    interface Delivery {
+        void deliver(SinkStage.Item item) throws Exception;
+    }
+
+    private static final int HEADER = 5;
+    private static final byte PENDING = 0;
+    private static final byte DONE = 1;
+    private static final long MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+    private static final long MAX_BACKOFF_MS = 60_000;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final long replayPauseMs;
+    private final Delivery delivery;
+
+    /** Сегменты от старого к новому; последний — в него идёт запись. */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    /** Не удалились сразу (файл ещё отображён) — пробуем ещё раз позже. */
+    private final List<Path> undeleted = new ArrayList<>();
+    private long totalBytes;
+    private long nextSeq;
+
+    private final Thread replayer;
+    private volatile boolean closing;
+    /** Когда последний раз получатель был недоступен (nanoTime; 0 — не был). */
+    private volatile long lastFailureNanos;
+    private long backoffMs;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    ResultOutbox(String directory, int maxMb, int replayPerSec, Delivery delivery) {
+        this.dir = Paths.get(directory == null || directory.isBlank() ? "outbox" : directory);
+        this.maxBytes = Math.max(1, maxMb) * 1024L * 1024L;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, maxBytes / 4));
+        this.replayPauseMs = 1000L / Math.max(1, replayPerSec);
+        this.delivery = delivery;
+        try {
+            Files.createDirectories(dir);
+            reopen();
+        } catch (IOException e) {
+            LogService.errorf("[OUTBOX] can't open %s: %s%n", dir, e.getMessage());
+        }
+        LogService.printf("[OUTBOX] %s: up to %d MB, replay %d/s, pending=%d%n",
+                dir, maxBytes / (1024 * 1024), Math.max(1, replayPerSec), pending.get());
+
+        this.replayer = new Thread(this::replayLoop, "outbox-replay");
+        replayer.setDaemon(true);
+    }
+
+    /** Запускает повтор доставки (после того как получатель готов писать). */
+    void start() {
+        replayer.start();
+    }
+
+    /**
+     * Ошибка «получатель недоступен», а не «плохие данные»: только такие
+     * результаты имеет смысл повторять позже.
+     */
+    static boolean isUnavailable(Throwable t) {
+        for (Throwable cur = t; cur != null; cur = cur.getCause() == cur ? null : cur.getCause()) {
+            if (cur instanceof SQLRecoverableException
+                    || cur instanceof SQLTransientConnectionException
+                    || cur instanceof SQLNonTransientConnectionException
+                    || cur instanceof ConnectException
+                    || cur instanceof SocketTimeoutException
+                    || cur instanceof UnknownHostException) {
+                return true;
+            }
+            if (cur instanceof SQLException sql && sql.getSQLState() != null && sql.getSQLState().startsWith("08")) {
+                return true;   // класс 08 — connection exception (у mssql-jdbc 08S01)
+            }
+        }
+        return false;
+    }
+
+    /** Отложить результат; false — не поместился (ошибка уже в логе). */
+    boolean append(SinkStage.Item item, String reason) {
+        lastFailureNanos = System.nanoTime();
+        byte[] data;
+        try {
+            data = serialize(item);
+        } catch (IOException e) {
+            LogService.errorf("[OUTBOX] %s_%s can't be serialized, result dropped: %s%n",
+                    item.ic().ci, item.reqId(), e.getMessage());
+            return false;
+        }
+        synchronized (this) {
+            try {
+                Segment seg = segments.peekLast();
+                if (seg == null || seg.writePos + HEADER + data.length > seg.capacity()) {
+                    seg = newSegment(HEADER + data.length);
+                    if (seg == null) {
+                        LogService.errorf("[OUTBOX] %s_%s (%d bytes) exceeds OutboxMaxMb, result dropped%n",
+                                item.ic().ci, item.reqId(), data.length);
+                        return false;
+                    }
+                }
+                int pos = seg.writePos;
+                seg.buf.put(pos + HEADER, data);
+                seg.buf.put(pos + 4, PENDING);
+                seg.buf.putInt(pos, data.length);   // последней — запись становится видимой
+                seg.buf.force();
+                seg.writePos = pos + HEADER + data.length;
+            } catch (IOException e) {
+                LogService.errorf("[OUTBOX] %s_%s not stored, result dropped: %s%n",
+                        item.ic().ci, item.reqId(), e.getMessage());
+                return false;
+            }
+        }
+        pending.incrementAndGet();
+        appended.increment();
+        LogService.errorf("[OUTBOX] %s_%s deferred: %s%n", item.ic().ci, item.reqId(), reason);
+        return true;
+    }
+
+    /** Печатает и сбрасывает счётчики. */
+    void logStats() {
+        LogService.printf("[OUTBOX] appended=%d replayed=%d failed=%d evicted=%d; pending=%d%n",
+                appended.sumThenReset(), replayed.sumThenReset(), failed.sumThenReset(),
+                evicted.sumThenReset(), pending.get());
+    }
+
+    /** Останавливает повтор (до закрытия получателя); append по-прежнему работает. */
+    void stopReplay() {
+        closing = true;
+        replayer.interrupt();
+        try {
+            replayer.join(60_000);   // доставка, которая уже идёт
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Сбрасывает сегменты на диск; недоставленное остаётся там до следующего запуска. */
+    void close() {
+        stopReplay();
+        synchronized (this) {
+            for (Segment s : segments) s.buf.force();
+        }
+        logStats();
+    }
+
+    /* ===================== повтор ===================== */
+
+    private void replayLoop() {
+        while (!closing) {
+            try {
+                Thread.sleep(backoffMs > 0 ? backoffMs : replayPauseMs);
+                retryUndeleted();
+                long quietMs = Math.max(backoffMs, 1000);
+                if (lastFailureNanos != 0 && System.nanoTime() - lastFailureNanos < quietMs * 1_000_000) {
+                    continue;   // только что были отказы — получатель ещё лежит
+                }
+                replayOne();
+            } catch (InterruptedException e) {
+                if (closing) return;
+            } catch (RuntimeException e) {
+                LogService.errorf("[OUTBOX] replay error: %s%n", e.toString());
+            }
+        }
+    }
+
+    private void replayOne() {
+        Segment seg;
+        int pos;
+        byte[] data;
+        synchronized (this) {
+            seg = nextPending();
+            if (seg == null) return;
+            pos = seg.readPos;
+            data = new byte[seg.buf.getInt(pos)];
+            seg.buf.get(pos + HEADER, data);
+        }
+        SinkStage.Item item;
+        try {
+            item = deserialize(data);
+        } catch (IOException | ClassNotFoundException e) {
+            LogService.errorf("[OUTBOX] unreadable record in %s @%d, skipped: %s%n",
+                    seg.file.getFileName(), pos, e.getMessage());
+            markDone(seg, pos);
+            return;
+        }
+        try {
+            delivery.deliver(item);
+            replayed.increment();
+            backoffMs = 0;
+            markDone(seg, pos);
+            LogService.printf("[OUTBOX] %s_%s replayed%n", item.ic().ci, item.reqId());
+        } catch (Exception e) {
+            if (closing) return;   // прервано остановкой — запись остаётся недоставленной
+            if (isUnavailable(e)) {
+                lastFailureNanos = System.nanoTime();
+                backoffMs = backoffMs == 0 ? 1000 : Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+                LogService.errorf("[OUTBOX] destination still unavailable (%s), next try in %d s%n",
+                        e.getMessage(), backoffMs / 1000);
+                return;
+            }
+            failed.increment();
+            markDone(seg, pos);   // «плохие данные» повтор не исправит
+            LogService.errorf("[OUTBOX] %s_%s replay failed, dropped: %s%n",
+                    item.ic().ci, item.reqId(), e.getMessage());
+        }
+    }
+
+    /** Сегмент, у которого readPos стоит на недоставленной записи; доставленные сегменты удаляются. */
+    private Segment nextPending() {
+        while (!segments.isEmpty()) {
+            Segment seg = segments.peekFirst();
+            seg.skipDone();
+            if (seg.readPos < seg.writePos) return seg;
+            if (seg == segments.peekLast()) return null;   // в него ещё пишут
+            segments.pollFirst();
+            delete(seg);
+        }
+        return null;
+    }
+
+    private void markDone(Segment seg, int pos) {
+        synchronized (this) {
+            if (!segments.contains(seg)) return;   // сегмент вытеснен, пока шла доставка
+            seg.buf.put(pos + 4, DONE);
+            if (seg.readPos == pos) seg.readPos = pos + HEADER + seg.buf.getInt(pos);
+        }
+        pending.decrementAndGet();
+    }
+
+    /* ===================== сегменты ===================== */
+
+    private static final class Segment {
+        final Path file;
+        final MappedByteBuffer buf;
+        int writePos;
+        int readPos;
+
+        Segment(Path file, MappedByteBuffer buf) {
+            this.file = file;
+            this.buf = buf;
+        }
+
+        int capacity() {
+            return buf.capacity();
+        }
+
+        /** readPos — на первую недоставленную запись (или на writePos). */
+        void skipDone() {
+            while (readPos < writePos && buf.get(readPos + 4) == DONE) {
+                readPos += HEADER + buf.getInt(readPos);
+            }
+        }
+
+        int countPending() {
+            int n = 0;
+            for (int p = readPos; p < writePos; p += HEADER + buf.getInt(p)) {
+                if (buf.get(p + 4) == PENDING) n++;
+            }
+            return n;
+        }
+    }
+
+    /** Подхватывает сегменты, оставшиеся с прошлого запуска. */
+    private void reopen() throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.getFileName().toString().matches("outbox-\\d+\\.seg")).sorted().toList();
+        }
+        for (Path f : files) {
+            Segment seg = new Segment(f, map(f, Files.size(f)));
+            int p = 0;
+            while (p + HEADER <= seg.capacity()) {
+                int len = seg.buf.getInt(p);
+                if (len <= 0 || p + HEADER + len > seg.capacity()) break;
+                p += HEADER + len;
+            }
+            seg.writePos = p;
+            seg.skipDone();
+            segments.addLast(seg);
+            totalBytes += seg.capacity();
+            pending.addAndGet(seg.countPending());
+            nextSeq = Math.max(nextSeq, seqOf(f));
+        }
+    }
+
+    /** Новый сегмент под запись; при нехватке места вытесняет самые старые. null — не влезет никогда. */
+    private Segment newSegment(int need) throws IOException {
+        long size = Math.max(segmentBytes, need);
+        if (size > maxBytes) return null;
+        while (totalBytes + size > maxBytes && !segments.isEmpty()) {
+            Segment old = segments.pollFirst();
+            int lost = old.countPending();
+            pending.addAndGet(-lost);
+            evicted.add(lost);
+            LogService.errorf("[OUTBOX] OutboxMaxMb reached, evicted %s with %d pending results%n",
+                    old.file.getFileName(), lost);
+            delete(old);
+        }
+        Path f = dir.resolve(String.format("outbox-%012d.seg", ++nextSeq));
+        Segment seg = new Segment(f, map(f, size));
+        segments.addLast(seg);
+        totalBytes += size;
+        return seg;
+    }
+
+    private static MappedByteBuffer map(Path f, long size) throws IOException {
+        try (FileChannel ch = FileChannel.open(f, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);   // отображение живёт и после закрытия канала
+        }
+    }
+
+    private void delete(Segment seg) {
+        totalBytes -= seg.capacity();
+        try {
+            Files.deleteIfExists(seg.file);
+        } catch (IOException e) {
+            undeleted.add(seg.file);   // Windows: отображённый файл не удалить, пока буфер не собран GC
+        }
+    }
+
+    private synchronized void retryUndeleted() {
+        undeleted.removeIf(f -> {
+            try {
+                Files.deleteIfExists(f);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    private static long seqOf(Path f) {
+        String n = f.getFileName().toString();
+        return Long.parseLong(n.substring("outbox-".length(), n.length() - ".seg".length()));
+    }
+
+    private static byte[] serialize(SinkStage.Item item) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(item);
+        }
+        return bos.toByteArray();
+    }
+
+    private static SinkStage.Item deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (SinkStage.Item) ois.readObject();
+        }
+    }
+}
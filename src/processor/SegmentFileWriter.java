@@ -0,0 +1,177 @@
+package processor;
+
+import logging.LogService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LOCALFILE в режиме {@code LocalFileMode=SEGMENTS}: вместо файла на каждый
+ * (ci, reqId) результаты дописываются в несколько сегментных файлов каталога
+ * out_*. Сотни тысяч мелких файлов в сутки больше не создаются.
+ *
+ * Сегментов {@code SegmentCount} штук, у каждого своя блокировка; поток
+ * пишет в первый свободный (начиная со «своего»), так что общей блокировки
+ * на все записи нет. Сегмент длиннее {@code SegmentMaxMb} закрывается,
+ * следующая запись открывает новый.
+ *
+ * Формат записи в {@code segment-<n>-<seq>.seg}:
+ * <pre>
+ *   int   длина заголовка
+ *   byte[] заголовок UTF-8: ci \0 reqId \0 resultExec
+ *   long  длина тела
+ *   byte[] тело — вывод форматтера в UTF-8 (при ResultCompression=GZIP — сжатое)
+ * </pre>
+ * Рядом — индекс {@code .idx}, строка на запись: {@code ci<TAB>reqId<TAB>offset<TAB>length},
+ * где offset/length — положение тела в сегменте (читается одним seek без разбора сегмента).
+ */
+final class SegmentFileWriter {
+
+    private final Stripe[] stripes;
+    private final long maxBytes;
+    private final boolean gzip;
+    private final AtomicInteger next = new AtomicInteger();
+
+    SegmentFileWriter(int segmentCount, int segmentMaxMb, boolean gzip) {
+        int n = Math.max(1, segmentCount);
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) stripes[i] = new Stripe(i + 1);
+        this.maxBytes = Math.max(1, segmentMaxMb) * 1024L * 1024L;
+        this.gzip = gzip;
+        LogService.printf("[RESP] LOCALFILE segments: %d x up to %d MB%s%n",
+                n, maxBytes / (1024 * 1024), gzip ? ", gzip" : "");
+    }
+
+    void write(String outDir, String ci, String reqId, ResultFormatter fmt, ResultBatch rs, String resultExec)
+            throws IOException {
+        Stripe s = acquire();
+        try {
+            long[] pos = s.append(Paths.get(outDir), ci, reqId, fmt, rs, resultExec);
+            LogService.printf("[RESP] %s_%s (%d rows) -> %s @%d%n",
+                    ci, reqId, rs == null ? 0 : rs.rowCount(), s.segmentName(), pos[0]);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /** Закрывает все открытые сегменты. */
+    void close() {
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                s.closeSegment();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+
+    /** Первый свободный сегмент, начиная со следующего по кругу; все заняты — ждём «свой». */
+    private Stripe acquire() {
+        int start = Math.floorMod(next.getAndIncrement(), stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe s = stripes[(start + i) % stripes.length];
+            if (s.lock.tryLock()) return s;
+        }
+        Stripe s = stripes[start];
+        s.lock.lock();
+        return s;
+    }
+
+    /* ===================== сегмент ===================== */
+
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final int id;
+        int seq;
+        Path dir;
+        Path segment;
+        FileChannel channel;
+        Writer index;
+
+        Stripe(int id) {
+            this.id = id;
+        }
+
+        String segmentName() {
+            return segment == null ? "-" : segment.getFileName().toString();
+        }
+
+        /** @return {offset, length} тела записи в сегменте */
+        long[] append(Path outDir, String ci, String reqId, ResultFormatter fmt, ResultBatch rs, String resultExec)
+                throws IOException {
+            if (channel == null || !outDir.equals(dir) || channel.size() >= maxBytes) {
+                closeSegment();
+                open(outDir);
+            }
+            long start = channel.size();
+            byte[] header = (ci + "\0" + reqId + "\0" + (resultExec == null ? "" : resultExec))
+                    .getBytes(StandardCharsets.UTF_8);
+            ByteBuffer head = ByteBuffer.allocate(4 + header.length + 8);
+            head.putInt(header.length).put(header).putLong(0L).flip();
+            channel.position(start);
+            while (head.hasRemaining()) channel.write(head);
+
+            long bodyStart = channel.position();
+            try {
+                // тело стримится прямо в файл; длина дописывается в заголовок после
+                OutputStream os = Channels.newOutputStream(channel);
+                Writer w = BodyPipe.openWriter(new NonClosing(os), gzip);
+                fmt.streamTo(ci, reqId, rs, w);
+                w.close();
+            } catch (IOException | RuntimeException e) {
+                channel.truncate(start);   // недописанная запись не должна ломать сегмент
+                throw e;
+            }
+            long bodyLen = channel.position() - bodyStart;
+            ByteBuffer len = ByteBuffer.allocate(8).putLong(bodyLen).flip();
+            channel.write(len, bodyStart - 8);
+
+            index.write(ci + "\t" + reqId + "\t" + bodyStart + "\t" + bodyLen + "\n");
+            index.flush();
+            return new long[]{bodyStart, bodyLen};
+        }
+
+        void open(Path outDir) throws IOException {
+            Files.createDirectories(outDir);
+            dir = outDir;
+            do {
+                segment = outDir.resolve("segment-" + id + "-" + (++seq) + ".seg");
+            } while (Files.exists(segment));
+            channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            index = Files.newBufferedWriter(outDir.resolve(segment.getFileName() + ".idx"), StandardCharsets.UTF_8);
+        }
+
+        void closeSegment() {
+            try { if (index != null) index.close(); } catch (IOException ignored) {}
+            try { if (channel != null) channel.close(); } catch (IOException ignored) {}
+            index = null;
+            channel = null;
+        }
+    }
+
+    /** close() не закрывает канал сегмента — только дописывает gzip-хвост. */
+    private static final class NonClosing extends OutputStream {
+        private final OutputStream out;
+
+        NonClosing(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override public void write(int b) throws IOException { out.write(b); }
+        @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+        @Override public void flush() throws IOException { out.flush(); }
+        @Override public void close() throws IOException { out.flush(); }
+    }
+}
@@ -0,0 +1,245 @@
+package processor;
+
+import logging.LogService;
+import model.InstanceConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Асинхронная стадия доставки результатов: ограниченная очередь и свой пул
+ * потоков «sink-N». Воркер опроса только кладёт уже прочитанный результат
+ * в очередь и сразу отпускает соединение — медленный INSERT или POST в
+ * VictoriaMetrics больше не держат ни соединение с источником, ни поток опроса.
+ *
+ * Поведение при полной очереди ({@code SinkOverflow}):
+ *  - BLOCK       — воркер опроса ждёт места (естественное торможение опроса);
+ *  - DROP_OLDEST — выбрасывается самый старый результат из очереди;
+ *  - SPILL       — результат сериализуется в файл в {@code SpillDirectory}
+ *                  и доставляется, когда очередь разгрузится; при включённом
+ *                  outbox ({@code OutboxMaxMb > 0}) — откладывается в {@link ResultOutbox}.
+ */
+final class SinkStage {
+
+    enum Overflow { BLOCK, DROP_OLDEST, SPILL }
+
+    /**
+     * Результат, ожидающий доставки. rows == null — результата нет (ошибка).
+     * ticket — номер для подтверждения доставки ({@link ResponseProcessor.Delivered}); 0 — не нужно.
+     */
+    record Item(InstanceConfig ic, String reqId, ResultBatch rows, String resultExec, String outDir, long ticket)
+            implements Serializable {}
+
+    /** Куда стадия передаёт результат (ResponseProcessor.deliver). */
+    interface Delivery {
+        void deliver(Item item) throws Exception;
+    }
+
+    private static final long POLL_MS = 200;
+    private static final String SPILL_EXT = ".spill";
+
+    private final BlockingQueue<Item> queue;
+    private final Overflow overflow;
+    private final Path spillDir;
+    /** SPILL при включённом outbox: лишнее уходит туда, а не в spill-каталог. */
+    private final ResultOutbox outbox;
+    private final Delivery delivery;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean closing;
+
+    private final AtomicLong spillSeq = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    SinkStage(int queueSize, int threads, String overflow, String spillDirectory, ResultOutbox outbox,
+              Delivery delivery) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.overflow = parseOverflow(overflow);
+        this.spillDir = Paths.get(spillDirectory == null || spillDirectory.isBlank() ? "spill" : spillDirectory);
+        this.outbox = outbox;
+        this.delivery = delivery;
+        int n = Math.max(1, threads);
+        for (int i = 1; i <= n; i++) {
+            Thread t = new Thread(this::workLoop, "sink-" + i);
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+        LogService.printf("[SINK] async delivery: queue=%d, threads=%d, overflow=%s%n",
+                queue.remainingCapacity(), n, this.overflow);
+    }
+
+    /** Поставить результат в очередь с учётом политики переполнения. */
+    void submit(Item item) throws InterruptedException {
+        if (!queue.offer(item)) {
+            switch (overflow) {
+                case BLOCK -> queue.put(item);
+                case DROP_OLDEST -> {
+                    while (!queue.offer(item)) {
+                        Item old = queue.poll();
+                        if (old != null) {
+                            dropped.increment();
+                            LogService.errorf("[SINK] queue full, dropped %s_%s%n", old.ic().ci, old.reqId());
+                        }
+                    }
+                }
+                case SPILL -> spill(item);
+            }
+        }
+        peakDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    /** Печатает и сбрасывает счётчики стадии. */
+    void logStats() {
+        LogService.printf("[SINK-STATS] delivered=%d failed=%d dropped=%d spilled=%d; queue now=%d peak=%d%n",
+                delivered.sumThenReset(), failed.sumThenReset(), dropped.sumThenReset(),
+                spilled.sumThenReset(), queue.size(), peakDepth.getAndSet(0));
+    }
+
+    /**
+     * Дожидается доставки всего, что уже в очереди и в spill-каталоге,
+     * и останавливает потоки. Новые результаты после close не принимаются.
+     */
+    void close() {
+        while (!queue.isEmpty() || inFlight.get() > 0 || hasSpilled()) {
+            try {
+                Thread.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        closing = true;
+        for (Thread t : workers) {
+            try {
+                t.join();   // поток доделывает результат, который уже взял
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        logStats();
+    }
+
+    /* ===================== worker ===================== */
+
+    private void workLoop() {
+        while (!closing) {
+            Item item;
+            try {
+                item = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (item == null) item = unspillOne();   // очередь пуста — догоняем сброшенное на диск
+            if (item == null) continue;
+            deliver(item);
+        }
+    }
+
+    private void deliver(Item item) {
+        inFlight.incrementAndGet();
+        try {
+            delivery.deliver(item);
+            delivered.increment();
+        } catch (Exception e) {
+            failed.increment();
+            LogService.errorf("[SINK] %s_%s delivery failed: %s%n", item.ic().ci, item.reqId(), e.getMessage());
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /* ===================== spill ===================== */
+
+    private void spill(Item item) {
+        if (outbox != null) {
+            if (outbox.append(item, "sink queue full")) spilled.increment();
+            else dropped.increment();
+            return;
+        }
+        try {
+            Files.createDirectories(spillDir);
+            Path tmp = spillDir.resolve(spillSeq.incrementAndGet() + ".tmp");
+            try (OutputStream os = Files.newOutputStream(tmp);
+                 ObjectOutputStream oos = new ObjectOutputStream(os)) {
+                oos.writeObject(item);
+            }
+            Files.move(tmp, tmp.resolveSibling(tmp.getFileName().toString().replace(".tmp", SPILL_EXT)));
+            spilled.increment();
+        } catch (IOException e) {
+            dropped.increment();
+            LogService.errorf("[SINK] spill failed for %s_%s, result dropped: %s%n",
+                    item.ic().ci, item.reqId(), e.getMessage());
+        }
+    }
+
+    /** Забирает самый старый файл из spill-каталога (удаляя его); null — нечего. */
+    private Item unspillOne() {
+        if (overflow != Overflow.SPILL || !Files.isDirectory(spillDir)) return null;
+        List<Path> files;
+        try (Stream<Path> s = Files.list(spillDir)) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(SPILL_EXT)).sorted().limit(8).toList();
+        } catch (IOException e) {
+            return null;
+        }
+        for (Path f : files) {
+            Path claimed = f.resolveSibling(f.getFileName() + ".taken-" + Thread.currentThread().getName());
+            try {
+                Files.move(f, claimed);   // другой sink-поток мог забрать файл раньше
+            } catch (IOException e) {
+                continue;
+            }
+            try (InputStream is = Files.newInputStream(claimed);
+                 ObjectInputStream ois = new ObjectInputStream(is)) {
+                return (Item) ois.readObject();
+            } catch (IOException | ClassNotFoundException e) {
+                LogService.errorf("[SINK] can't read spilled result %s: %s%n", f.getFileName(), e.getMessage());
+                return null;
+            } finally {
+                try { Files.deleteIfExists(claimed); } catch (IOException ignored) {}
+            }
+        }
+        return null;
+    }
+
+    private boolean hasSpilled() {
+        if (overflow != Overflow.SPILL || !Files.isDirectory(spillDir)) return false;
+        try (Stream<Path> s = Files.list(spillDir)) {
+            return s.anyMatch(p -> p.getFileName().toString().endsWith(SPILL_EXT));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Overflow parseOverflow(String s) {
+        if (s == null || s.isBlank()) return Overflow.BLOCK;
+        try {
+            return Overflow.valueOf(s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LogService.errorf("[SINK] unknown SinkOverflow '%s', using BLOCK%n", s);
+            return Overflow.BLOCK;
+        }
+    }
+}
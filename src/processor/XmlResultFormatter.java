@@ -3,12 +3,9 @@ package processor;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
 
 /**
- * Сериализация ResultSet в XML.
+ * Сериализация результата в XML.
  *
  * Формат полностью совпадает с прежним выводом ResponseProcessor:
  *   <Result>
@@ -36,7 +33,7 @@ public class XmlResultFormatter implements ResultFormatter {
     }
 
     @Override
-    public int streamTo(String ci, String reqId, ResultSet rs, Writer w) throws SQLException, IOException {
+    public int streamTo(String ci, String reqId, ResultBatch rs, Writer w) throws IOException {
         if (includeDeclaration) w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
 
         if (rs == null) {
@@ -44,29 +41,25 @@ public class XmlResultFormatter implements ResultFormatter {
             return 0;
         }
 
-        ResultSetMetaData md = rs.getMetaData();
-        int cols = md.getColumnCount();
+        int cols = rs.columnCount();
         w.write("<Result>\n");
-        int rowCnt = 0;
-        while (rs.next()) {
+        for (int r = 0; r < rs.rowCount(); r++) {
             w.write("  <Row>\n");
-            for (int c = 1; c <= cols; c++) {
-                String col = md.getColumnLabel(c);
-                if (col == null || col.isEmpty()) col = md.getColumnName(c);
-                String val = rs.getString(c);
+            for (int c = 0; c < cols; c++) {
+                String col = rs.columnName(c);
+                String val = rs.getString(r, c);
                 w.write("    <" + col + ">");
                 if (val != null) w.write(escape(val));
                 w.write("</" + col + ">\n");
             }
             w.write("  </Row>\n");
-            rowCnt++;
         }
         w.write("</Result>\n");
-        return rowCnt;
+        return rs.rowCount();
     }
 
     @Override
-    public FormatResult format(String ci, String reqId, ResultSet rs) throws SQLException {
+    public FormatResult format(String ci, String reqId, ResultBatch rs) {
         StringWriter sw = new StringWriter();
         int rows;
         try {
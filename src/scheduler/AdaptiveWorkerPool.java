@@ -0,0 +1,162 @@
+package scheduler;
+
+import logging.LogService;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул воркеров, размер которого подстраивается под нагрузку ({@code ExecutorMode=ADAPTIVE}).
+ *
+ * Раз в секунду контроллер AIMD смотрит на задержки из {@link LatencyProbe}
+ * и на длину очереди задач:
+ *  - задержка подключения, запроса или записи результата выросла больше чем
+ *    в {@code CONGESTION_RATIO} раз относительно базовой (опрашиваемые серверы
+ *    или получатель захлёбываются) — размер умножается на {@code DECREASE_FACTOR};
+ *  - задержки в норме, а в очереди есть задачи — размер растёт на {@code INCREASE_STEP};
+ *  - иначе размер не меняется.
+ * Размер всегда в пределах [{@code MinThreadPoolSize} .. {@code ThreadPoolSize}].
+ *
+ * Базовая задержка — медленно «всплывающий» минимум: мгновенно опускается
+ * к меньшим замерам и понемногу поднимается к большим, чтобы смена набора
+ * запросов не держала пул на минимуме вечно.
+ *
+ * Для QUERY базовая задержка своя у каждого запроса (ci|reqId): средняя по
+ * смеси быстрых и тяжёлых запросов скачет от того, какие из них попали в
+ * секунду, а не от нагрузки на серверы. Перегрузка — когда медиана отношений
+ * «текущая / базовая» по запросам тика больше {@code CONGESTION_RATIO}:
+ * один медленный запрос пул не сжимает, общее замедление — сжимает.
+ */
+public final class AdaptiveWorkerPool extends ThreadPoolExecutor {
+
+    private static final long   TICK_MS          = 1_000;
+    private static final double CONGESTION_RATIO = 2.0;
+    private static final double DECREASE_FACTOR  = 0.7;
+    private static final int    INCREASE_STEP    = 2;
+    /** Сколько тиков после уменьшения не трогать размер — дать новому размеру проявиться. */
+    private static final int    COOLDOWN_TICKS   = 3;
+    /** Скорость «всплытия» базовой задержки к текущей. */
+    private static final double BASELINE_DRIFT   = 0.02;
+
+    private final int minSize;
+    private final int maxSize;
+    private final double[] baselineMs = new double[LatencyProbe.Kind.values().length];
+    /** Базовая задержка QUERY по запросам, "ci|reqId" → мс. */
+    private final Map<String, Double> queryBaselineMs = new HashMap<>();
+    private final ScheduledExecutorService controller;
+    private int cooldown;
+
+    private AdaptiveWorkerPool(int minSize, int maxSize, String namePrefix) {
+        super(minSize, minSize, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), namedFactory(namePrefix));
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        Arrays.fill(baselineMs, -1);
+        LatencyProbe.trackQueries();
+        this.controller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, namePrefix + "controller");
+            t.setDaemon(true);
+            return t;
+        });
+        controller.scheduleWithFixedDelay(this::adjust, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Пул со стартовым размером {@code minSize}, растущий не выше {@code maxSize}. */
+    public static AdaptiveWorkerPool create(int minSize, int maxSize, String namePrefix) {
+        int max = Math.max(1, maxSize);
+        int min = Math.max(1, Math.min(minSize, max));
+        LogService.printf("[EXEC] %s: adaptive pool %d..%d threads%n", namePrefix, min, max);
+        return new AdaptiveWorkerPool(min, max, namePrefix);
+    }
+
+    @Override
+    protected void terminated() {
+        controller.shutdownNow();
+        super.terminated();
+    }
+
+    private void adjust() {
+        try {
+            LatencyProbe.Sample[] samples = LatencyProbe.drain();
+            boolean congested = false;
+            LatencyProbe.Kind worst = null;
+            for (LatencyProbe.Kind k : LatencyProbe.Kind.values()) {
+                if (k == LatencyProbe.Kind.QUERY) continue;   // см. queriesCongested()
+                double avg = samples[k.ordinal()].avgMs();
+                if (avg < 0) continue;
+                double base = baselineMs[k.ordinal()];
+                if (base >= 0 && avg > base * CONGESTION_RATIO) {
+                    congested = true;
+                    worst = k;
+                }
+                baselineMs[k.ordinal()] = drift(base, avg);
+            }
+            if (queriesCongested(LatencyProbe.drainQueries())) {
+                congested = true;
+                worst = LatencyProbe.Kind.QUERY;
+            }
+
+            int size = getCorePoolSize();
+            int queued = getQueue().size();
+            if (cooldown > 0) {
+                cooldown--;
+                return;
+            }
+            if (congested && size > minSize) {
+                resize(Math.max(minSize, (int) (size * DECREASE_FACTOR)), "latency " + worst + " up", queued);
+                cooldown = COOLDOWN_TICKS;
+            } else if (!congested && queued > 0 && size < maxSize) {
+                resize(Math.min(maxSize, size + INCREASE_STEP), "queue", queued);
+            }
+        } catch (Throwable t) {
+            // исключение отменило бы все следующие тики контроллера
+            LogService.errorf("[EXEC] adaptive pool controller failed: %s%n", t);
+        }
+    }
+
+    /** Медиана отношений текущей задержки запроса к его базовой больше CONGESTION_RATIO. */
+    private boolean queriesCongested(Map<String, LatencyProbe.Sample> samples) {
+        double[] ratios = new double[samples.size()];
+        int n = 0;
+        for (Map.Entry<String, LatencyProbe.Sample> e : samples.entrySet()) {
+            double avg = e.getValue().avgMs();
+            Double base = queryBaselineMs.get(e.getKey());
+            if (base != null && base > 0) ratios[n++] = avg / base;
+            queryBaselineMs.put(e.getKey(), drift(base == null ? -1 : base, avg));
+        }
+        if (n == 0) return false;
+        Arrays.sort(ratios, 0, n);
+        double median = n % 2 == 1 ? ratios[n / 2] : (ratios[n / 2 - 1] + ratios[n / 2]) / 2;
+        return median > CONGESTION_RATIO;
+    }
+
+    /** Новая базовая задержка: сразу вниз к меньшему замеру, медленно вверх к большему. */
+    private static double drift(double base, double avg) {
+        return base < 0 || avg < base ? avg : base + BASELINE_DRIFT * (avg - base);
+    }
+
+    private void resize(int newSize, String reason, int queued) {
+        int size = getCorePoolSize();
+        if (newSize == size) return;
+        if (newSize > size) {
+            setMaximumPoolSize(newSize);
+            setCorePoolSize(newSize);
+        } else {
+            setCorePoolSize(newSize);
+            setMaximumPoolSize(newSize);
+        }
+        LogService.printf("[EXEC] adaptive pool %d -> %d threads (%s, queued=%d)%n", size, newSize, reason, queued);
+    }
+
+    private static ThreadFactory namedFactory(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> new Thread(r, prefix + seq.incrementAndGet());
+    }
+}
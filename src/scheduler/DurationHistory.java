@@ -0,0 +1,134 @@
+package scheduler;
+
+import model.InstanceConfig;
+import model.QueryRequest;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * История длительности опроса: сглаженное (EWMA) время на инстанс и на
+ * каждый запрос инстанса.
+ *
+ * Используется для планирования «самое долгое — первым» (LPT): инстансы
+ * стартуют в порядке убывания ожидаемого времени, а запросы раскладываются
+ * по дорожкам так, чтобы дорожки заканчивались примерно одновременно.
+ * Медленный сервер в конце списка больше не определяет время всего цикла.
+ *
+ * В режиме DAEMON история живёт в памяти; в режиме RUN читается из файла
+ * в начале и сохраняется в конце запуска (см. {@link StateFiles}).
+ */
+public final class DurationHistory {
+
+    /** Вес нового замера в EWMA. */
+    private static final double ALPHA = 0.3;
+
+    private static final String INSTANCE_PREFIX = "i.";
+    private static final String QUERY_PREFIX    = "q.";
+
+    private final Map<String, Double> ewmaMs = new ConcurrentHashMap<>();
+    private final Path stateFile;
+
+    private DurationHistory(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /** История только в памяти (DAEMON). */
+    public static DurationHistory inMemory() {
+        return new DurationHistory(null);
+    }
+
+    /** История с файлом состояния (RUN). */
+    public static DurationHistory load(Path stateFile) {
+        DurationHistory h = new DurationHistory(stateFile);
+        Properties p = StateFiles.load(stateFile);
+        for (String key : p.stringPropertyNames()) {
+            try {
+                h.ewmaMs.put(key, Double.parseDouble(p.getProperty(key)));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return h;
+    }
+
+    public void recordInstance(String ci, long elapsedMs) {
+        update(INSTANCE_PREFIX + ci, elapsedMs);
+    }
+
+    public void recordQuery(String ci, String reqId, long elapsedMs) {
+        update(QUERY_PREFIX + ci + "|" + reqId, elapsedMs);
+    }
+
+    /** Ожидаемое время опроса инстанса, мс; -1 — истории нет. */
+    public double expectedInstanceMs(String ci) {
+        return ewmaMs.getOrDefault(INSTANCE_PREFIX + ci, -1.0);
+    }
+
+    /** Ожидаемое время запроса на инстансе, мс; -1 — истории нет. */
+    public double expectedQueryMs(String ci, String reqId) {
+        return ewmaMs.getOrDefault(QUERY_PREFIX + ci + "|" + reqId, -1.0);
+    }
+
+    /**
+     * Инстансы в порядке убывания ожидаемого времени. Инстансы без истории
+     * идут первыми (о них ничего не известно — худший случай), порядок
+     * равных сохраняется.
+     */
+    public List<InstanceConfig> longestFirst(List<InstanceConfig> servers) {
+        List<InstanceConfig> sorted = new ArrayList<>(servers);
+        sorted.sort(Comparator.comparingDouble(ic -> -orUnknown(expectedInstanceMs(ic.ci))));
+        return sorted;
+    }
+
+    /**
+     * Раскладывает запросы инстанса по {@code laneCount} дорожкам жадным LPT:
+     * самый долгий запрос — в наименее загруженную дорожку. Внутри дорожки
+     * сохраняется исходный порядок запросов.
+     */
+    public List<List<QueryRequest>> assignLanes(String ci, List<QueryRequest> queries, int laneCount) {
+        List<QueryRequest> byCost = new ArrayList<>(queries);
+        byCost.sort(Comparator.comparingDouble(qr -> -orUnknown(expectedQueryMs(ci, qr.requestId()))));
+
+        double[] load = new double[laneCount];
+        Map<QueryRequest, Integer> laneOf = new IdentityHashMap<>();
+        for (QueryRequest qr : byCost) {
+            int best = 0;
+            for (int i = 1; i < laneCount; i++) {
+                if (load[i] < load[best]) best = i;
+            }
+            double cost = expectedQueryMs(ci, qr.requestId());
+            load[best] += cost < 0 ? 1 : cost;
+            laneOf.put(qr, best);
+        }
+
+        List<List<QueryRequest>> lanes = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) lanes.add(new ArrayList<>());
+        for (QueryRequest qr : queries) lanes.get(laneOf.get(qr)).add(qr);
+        lanes.removeIf(List::isEmpty);
+        return lanes;
+    }
+
+    /** Сохраняет историю в файл (для истории в памяти — ничего не делает). */
+    public void save() {
+        if (stateFile == null) return;
+        Properties p = new Properties();
+        ewmaMs.forEach((k, v) -> p.setProperty(k, String.format(Locale.ROOT, "%.1f", v)));
+        StateFiles.store(stateFile, p, "MSSQLCollector: smoothed duration (ms) per instance (i.) and query (q.)");
+    }
+
+    private void update(String key, long elapsedMs) {
+        ewmaMs.merge(key, (double) elapsedMs, (old, cur) -> old + ALPHA * (cur - old));
+    }
+
+    /** Неизвестное время считаем «бесконечным», чтобы такие задачи стартовали первыми. */
+    private static double orUnknown(double ms) {
+        return ms < 0 ? Double.MAX_VALUE : ms;
+    }
+}
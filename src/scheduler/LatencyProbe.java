@@ -0,0 +1,85 @@
+package scheduler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счётчики задержек для адаптивного пула воркеров ({@link AdaptiveWorkerPool}).
+ *
+ *  CONNECT — открытие нового JDBC-соединения (DbConnector);
+ *  QUERY   — выполнение одного запроса на опрашиваемом сервере (без записи
+ *            результата получателем), отдельно по каждому запросу;
+ *  SINK    — приём и запись результата получателем (ResponseProcessor.handle).
+ *
+ * Запись — два LongAdder на замер, без блокировок; контроллер периодически
+ * забирает средние значения через {@link #drain()} и {@link #drainQueries()}.
+ */
+public final class LatencyProbe {
+
+    public enum Kind { CONNECT, QUERY, SINK }
+
+    /** Средняя задержка, мс, и число замеров за интервал; avgMs = -1 — замеров не было. */
+    public record Sample(double avgMs, long count) {}
+
+    private static final LongAdder[] nanos  = newAdders();
+    private static final LongAdder[] counts = newAdders();
+
+    private LatencyProbe() {}
+
+    /** Замеры QUERY по запросам: "ci|reqId" → {наносекунды, число замеров}. */
+    private static final Map<String, LongAdder[]> queries = new ConcurrentHashMap<>();
+    /** Есть кому забирать замеры по запросам (адаптивный пул); иначе они не копятся. */
+    private static volatile boolean perQuery;
+
+    public static void record(Kind kind, long elapsedNanos) {
+        nanos[kind.ordinal()].add(elapsedNanos);
+        counts[kind.ordinal()].increment();
+    }
+
+    /**
+     * Время запроса на сервере-источнике. Запросы различаются по длительности
+     * на порядки, поэтому сравнивать их имеет смысл только каждый с самим собой.
+     */
+    public static void recordQuery(String ci, String requestId, long elapsedNanos) {
+        record(Kind.QUERY, elapsedNanos);
+        if (!perQuery) return;
+        LongAdder[] a = queries.computeIfAbsent(ci + "|" + requestId, k -> new LongAdder[]{new LongAdder(), new LongAdder()});
+        a[0].add(elapsedNanos);
+        a[1].increment();
+    }
+
+    /** Средние задержки с прошлого вызова (счётчики сбрасываются), по индексу {@code Kind.ordinal()}. */
+    static Sample[] drain() {
+        Sample[] out = new Sample[Kind.values().length];
+        for (int i = 0; i < out.length; i++) {
+            long n = counts[i].sumThenReset();
+            long ns = nanos[i].sumThenReset();
+            out[i] = new Sample(n == 0 ? -1 : ns / 1e6 / n, n);
+        }
+        return out;
+    }
+
+    /** Включает замеры по запросам; вызывает {@link AdaptiveWorkerPool}, который их забирает. */
+    static void trackQueries() {
+        perQuery = true;
+    }
+
+    /** Средние QUERY по запросам с прошлого вызова; запросы без замеров не попадают. */
+    static Map<String, Sample> drainQueries() {
+        Map<String, Sample> out = new HashMap<>();
+        queries.forEach((key, a) -> {
+            long ns = a[0].sumThenReset();
+            long n = a[1].sumThenReset();
+            if (n > 0) out.put(key, new Sample(ns / 1e6 / n, n));
+        });
+        return out;
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] a = new LongAdder[Kind.values().length];
+        for (int i = 0; i < a.length; i++) a[i] = new LongAdder();
+        return a;
+    }
+}
@@ -0,0 +1,57 @@
+package scheduler;
+
+import logging.LogService;
+import model.InstanceConfig;
+import model.QueryRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Раскладка запросов по инстансам по {@link model.QuerySelector}: каждому
+ * инстансу — только подходящие ему запросы (T-SQL не уходит на OceanBase и наоборот).
+ *
+ * Считается один раз при старте. Инстансы с одинаковыми типом СУБД, версией
+ * и лейблами получают один и тот же (общий) список, поэтому селекторы
+ * проверяются по числу различных «профилей» инстансов, а не по числу инстансов.
+ */
+public final class QueryRouting {
+
+    private QueryRouting() {}
+
+    public static Map<InstanceConfig, List<QueryRequest>> build(List<InstanceConfig> servers,
+                                                                List<QueryRequest> queries) {
+        Map<InstanceConfig, List<QueryRequest>> byServer = new IdentityHashMap<>();
+        boolean anySelector = queries.stream().anyMatch(qr -> qr.selector() != null);
+        if (!anySelector) {
+            servers.forEach(s -> byServer.put(s, queries));
+            return byServer;
+        }
+
+        Map<String, List<QueryRequest>> byProfile = new HashMap<>();
+        long skipped = 0;
+        for (InstanceConfig s : servers) {
+            List<QueryRequest> list = byProfile.computeIfAbsent(profile(s), k -> {
+                List<QueryRequest> applicable = new ArrayList<>();
+                for (QueryRequest qr : queries) {
+                    if (qr.appliesTo(s)) applicable.add(qr);
+                }
+                return List.copyOf(applicable);
+            });
+            byServer.put(s, list);
+            skipped += queries.size() - list.size();
+        }
+        LogService.printf("[ROUTE] %d instance profiles, %d query executions per cycle skipped as not applicable%n",
+                byProfile.size(), skipped);
+        return byServer;
+    }
+
+    /** Всё, от чего зависит результат QuerySelector.matches. */
+    private static String profile(InstanceConfig s) {
+        return s.dbType + "|" + s.version + "|" + new TreeMap<>(s.extraLabels);
+    }
+}
@@ -0,0 +1,93 @@
+package scheduler;
+
+import model.QueryRequest;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Расписание выполнения запросов с собственным интервалом ({@code intervalSec}).
+ *
+ * Для каждой пары (ci, reqId) помнит время последнего запуска и в очередном
+ * цикле отдаёт только те запросы, которым «пора». Запросы без интервала
+ * выполняются в каждом цикле, как раньше.
+ *
+ * В режиме DAEMON состояние живёт в памяти; в режиме RUN оно читается из
+ * файла в начале и сохраняется в конце запуска (см. {@link StateFiles}).
+ */
+public final class QuerySchedule {
+
+    /** Допуск на «дрожание» тика: запрос считается пора выполнять чуть раньше срока. */
+    private static final long MAX_SLACK_MS = 5_000;
+
+    private final Map<String, Long> lastRunMs = new ConcurrentHashMap<>();
+    /** Выбраны к запуску в этом цикле, но ещё не выполнились: ключ → время цикла. */
+    private final Map<String, Long> selectedMs = new ConcurrentHashMap<>();
+    private final Path stateFile;
+
+    private QuerySchedule(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /** Расписание только в памяти (DAEMON). */
+    public static QuerySchedule inMemory() {
+        return new QuerySchedule(null);
+    }
+
+    /** Расписание с файлом состояния (RUN): время прошлых запусков читается из файла. */
+    public static QuerySchedule load(Path stateFile) {
+        QuerySchedule s = new QuerySchedule(stateFile);
+        Properties p = StateFiles.load(stateFile);
+        for (String key : p.stringPropertyNames()) {
+            try {
+                s.lastRunMs.put(key, Long.parseLong(p.getProperty(key)));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Запросы, которые пора выполнить на инстансе {@code ci}. Время запуска
+     * запоминается не здесь, а в {@link #markRun}, когда запрос выполнился:
+     * пропущенный (breaker, дедлайн) или упавший запрос будет выбран снова
+     * в следующем цикле, а не через полный {@code intervalSec}.
+     */
+    public List<QueryRequest> dueQueries(String ci, List<QueryRequest> queries, long nowMs) {
+        List<QueryRequest> due = new ArrayList<>(queries.size());
+        for (QueryRequest qr : queries) {
+            if (!qr.hasInterval()) {
+                due.add(qr);
+                continue;
+            }
+            String key = ci + "|" + qr.requestId();
+            long intervalMs = qr.intervalSec() * 1000L;
+            long slack = Math.min(MAX_SLACK_MS, intervalMs / 10);
+            Long last = lastRunMs.get(key);
+            if (last == null || nowMs - last >= intervalMs - slack) {
+                selectedMs.put(key, nowMs);
+                due.add(qr);
+            }
+        }
+        return due;
+    }
+
+    /** Запрос выполнился: от времени цикла, в котором он выбран, отсчитывается следующий интервал. */
+    public void markRun(String ci, String requestId) {
+        String key = ci + "|" + requestId;
+        Long selected = selectedMs.remove(key);
+        if (selected != null) lastRunMs.put(key, selected);
+    }
+
+    /** Сохраняет состояние в файл (для расписания в памяти — ничего не делает). */
+    public void save() {
+        if (stateFile == null) return;
+        Properties p = new Properties();
+        lastRunMs.forEach((k, v) -> p.setProperty(k, Long.toString(v)));
+        StateFiles.store(stateFile, p, "MSSQLCollector: last run time (epoch ms) per ci|reqId");
+    }
+}
@@ -0,0 +1,53 @@
+package scheduler;
+
+import logging.LogService;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Небольшие файлы состояния коллектора между запусками (каталог {@code StateDirectory}).
+ *
+ * В режиме RUN процесс живёт один цикл, поэтому всё, что нужно помнить
+ * между запусками cron-а (когда запрос выполнялся в последний раз и т.п.),
+ * хранится в простых .properties-файлах. Запись атомарная: сначала во
+ * временный файл, затем move поверх старого.
+ */
+public final class StateFiles {
+
+    private StateFiles() {}
+
+    /** Читает properties-файл; если его нет или он битый — пустой набор. */
+    public static Properties load(Path file) {
+        Properties p = new Properties();
+        if (file == null || !Files.exists(file)) return p;
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            p.load(r);
+        } catch (IOException | IllegalArgumentException e) {
+            LogService.errorf("[STATE] can't read %s: %s (starting with empty state)%n", file, e.getMessage());
+        }
+        return p;
+    }
+
+    /** Атомарно сохраняет properties-файл (каталог создаётся при необходимости). */
+    public static void store(Path file, Properties p, String comment) {
+        if (file == null) return;
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            if (dir != null) Files.createDirectories(dir);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                p.store(w, comment);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LogService.errorf("[STATE] can't write %s: %s%n", file, e.getMessage());
+        }
+    }
+}
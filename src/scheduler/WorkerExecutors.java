@@ -0,0 +1,90 @@
+package scheduler;
+
+import logging.LogService;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Фабрика пулов потоков для опроса серверов.
+ *
+ * Режим задаётся {@code ExecutorMode}:
+ *  - PLATFORM — как раньше, фиксированный пул обычных потоков;
+ *  - VIRTUAL  — виртуальный поток на задачу (JDK 21+). Параллельность в этом
+ *               режиме ограничивается не числом потоков, а семафорами
+ *               (на инстансы, подключения, получателя результатов);
+ *  - ADAPTIVE — пул обычных потоков, размер которого подстраивается по
+ *               задержкам в пределах [MinThreadPoolSize .. ThreadPoolSize]
+ *               (см. {@link AdaptiveWorkerPool}).
+ *
+ * Проект собирается под Java 17, поэтому API виртуальных потоков вызывается
+ * через reflection. На JDK 17 режим VIRTUAL откатывается на PLATFORM (с предупреждением в логе).
+ */
+public final class WorkerExecutors {
+
+    private WorkerExecutors() {}
+
+    /** true — запрошен VIRTUAL и JVM умеет виртуальные потоки. */
+    public static boolean isVirtual(String mode) {
+        return "VIRTUAL".equals(normalize(mode)) && virtualThreadsAvailable();
+    }
+
+    /**
+     * Пул для опроса серверов: при VIRTUAL — поток на задачу,
+     * иначе — {@code Executors.newFixedThreadPool(platformSize)}.
+     */
+    public static ExecutorService newWorkerPool(String mode, int platformSize, String namePrefix) {
+        return newWorkerPool(mode, platformSize, platformSize, namePrefix);
+    }
+
+    /** То же, но для ADAPTIVE размер пула меняется в пределах [{@code minSize} .. {@code platformSize}]. */
+    public static ExecutorService newWorkerPool(String mode, int minSize, int platformSize, String namePrefix) {
+        if ("ADAPTIVE".equals(normalize(mode))) {
+            return AdaptiveWorkerPool.create(minSize, platformSize, namePrefix);
+        }
+        if ("VIRTUAL".equals(normalize(mode))) {
+            ExecutorService ex = newVirtualPerTaskExecutor(namePrefix);
+            if (ex != null) {
+                LogService.printf("[EXEC] %s: virtual threads%n", namePrefix);
+                return ex;
+            }
+            LogService.errorf("[EXEC] ExecutorMode=VIRTUAL needs JDK 21+ (running %s), " +
+                    "falling back to fixed pool of %d threads%n",
+                    System.getProperty("java.version"), platformSize);
+        }
+        return Executors.newFixedThreadPool(Math.max(1, platformSize));
+    }
+
+    /** Executor «виртуальный поток на задачу» либо null, если JVM его не поддерживает. */
+    public static ExecutorService newVirtualPerTaskExecutor(String namePrefix) {
+        try {
+            // Thread.ofVirtual().name(prefix, 0).factory()
+            Class<?> builderIf = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderIf.getMethod("name", String.class, long.class)
+                    .invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderIf.getMethod("factory").invoke(builder);
+
+            Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static String normalize(String mode) {
+        return mode == null ? "" : mode.trim().toUpperCase(Locale.ROOT);
+    }
+}